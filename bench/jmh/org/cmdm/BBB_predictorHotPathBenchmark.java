@@ -0,0 +1,283 @@
+package org.cmdm;
+
+import java.io.StringReader;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.knime.chem.base.util.sdf.MolfileBlock;
+import org.knime.chem.base.util.sdf.SDFAnalyzer;
+import org.knime.chem.base.util.sdf.SDFBlock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+
+/**
+ * Micro-benchmarks for every stage of the per-molecule hot path: tokenising a
+ * record with {@link SDFAnalyzer}, building the molecule with CDK's
+ * {@link IteratingSDFReader} or with {@link BBB_predictorCtabParser}, each
+ * descriptor on its own and the complete row assembly done by
+ * {@link BBB_predictorScorer} for every record during execution.
+ * <p>
+ * All benchmarks are parameterised by molecule size. Each invocation takes
+ * the next of {@link #RECORDS} pre-generated records, so the numbers are not
+ * distorted by a single molecule staying hot in the caches. Run
+ * {@link #main(String[])} to get the allocation rate per operation from the
+ * GC profiler as well.
+ *
+ * @author Yi Hsiao
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BBB_predictorHotPathBenchmark {
+    /** The number of different records per size bucket, a power of two. */
+    static final int RECORDS = 64;
+
+    /**
+     * Pre-generated records of one size bucket.
+     */
+    @State(Scope.Thread)
+    public static class Records {
+        /**
+         * The molecule size: <code>small</code> (8-15 heavy atoms),
+         * <code>medium</code> (25-45) or <code>large</code> (60-100).
+         */
+        @Param({"small", "medium", "large"})
+        public String size;
+
+        String[] m_records;
+
+        SDFBlock[] m_blocks;
+
+        IAtomContainer[] m_molecules;
+
+        private int m_next;
+
+        /**
+         * Generates the records and the intermediate results needed by the
+         * later stages.
+         *
+         * @throws Exception if a record cannot be parsed
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            int min;
+            int max;
+            if ("small".equals(size)) {
+                min = 8;
+                max = 15;
+            } else if ("medium".equals(size)) {
+                min = 25;
+                max = 45;
+            } else if ("large".equals(size)) {
+                min = 60;
+                max = 100;
+            } else {
+                throw new IllegalArgumentException("Unknown size: " + size);
+            }
+            Random random = new Random(size.hashCode());
+            BBB_predictorSyntheticSDF generator =
+                    new BBB_predictorSyntheticSDF(random.nextLong());
+            m_records = new String[RECORDS];
+            m_blocks = new SDFBlock[RECORDS];
+            m_molecules = new IAtomContainer[RECORDS];
+            for (int i = 0; i < RECORDS; i++) {
+                m_records[i] = generator.record(
+                        min + random.nextInt(max - min + 1), 4);
+                m_blocks[i] = SDFAnalyzer.analyzeSDF(m_records[i]);
+                m_molecules[i] = readMolecule(m_records[i]);
+            }
+        }
+
+        /**
+         * Returns the index of the record for the next invocation.
+         *
+         * @return an index below {@link BBB_predictorHotPathBenchmark#RECORDS}
+         */
+        int next() {
+            m_next = (m_next + 1) & (RECORDS - 1);
+            return m_next;
+        }
+    }
+
+    /**
+     * A descriptor engine for one of the descriptors.
+     */
+    @State(Scope.Thread)
+    public static class Descriptor {
+        /** The name of a {@link BBB_predictorDescriptor}. */
+        @Param({"ALOGP", "TPSA", "BCUT", "MANNHOLD_LOGP"})
+        public String descriptor;
+
+        BBB_predictorDescriptor m_descriptor;
+
+        final BBB_predictorDescriptorEngine m_engine =
+                new BBB_predictorDescriptorEngine(
+                        new BBB_predictorMetrics(null));
+
+        /** Resolves the descriptor. */
+        @Setup(Level.Trial)
+        public void setUp() {
+            m_descriptor = BBB_predictorDescriptor.valueOf(descriptor);
+        }
+    }
+
+    /**
+     * A scorer with all predictions enabled and the descriptor cache and
+     * duplicate detection disabled, so that every record is scored from
+     * scratch.
+     */
+    @State(Scope.Thread)
+    public static class Scoring {
+        BBB_predictorScorer m_scorer;
+
+        URL m_source;
+
+        private long m_index;
+
+        /**
+         * Creates the scorer.
+         *
+         * @throws Exception if the source URL is invalid
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BBB_predictorNodeSettings settings =
+                    new BBB_predictorNodeSettings();
+            settings.useDescriptorCache(false);
+            settings.deduplicate(false);
+            m_scorer = new BBB_predictorScorer(settings,
+                    new BBB_predictorDefaultSDFReader(settings),
+                    settings.properties(), new BBB_predictorMetrics(null));
+            m_source = new URL("file:/benchmark.sdf");
+        }
+
+        long nextIndex() {
+            return m_index++;
+        }
+    }
+
+    /**
+     * The connection table parser of a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Parser {
+        final BBB_predictorCtabParser m_parser = new BBB_predictorCtabParser();
+    }
+
+    static IAtomContainer readMolecule(final String record) throws Exception {
+        IteratingSDFReader reader = new IteratingSDFReader(
+                new StringReader(record), DefaultChemObjectBuilder.getInstance());
+        try {
+            return reader.next();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Tokenises a record.
+     *
+     * @param records the records
+     * @return the record's blocks
+     * @throws Exception if the record cannot be tokenised
+     */
+    @Benchmark
+    public Object analyzeSDF(final Records records) throws Exception {
+        return SDFAnalyzer.analyzeSDF(records.m_records[records.next()]);
+    }
+
+    /**
+     * Parses a record into a molecule with CDK's SDF reader, the fallback
+     * path of the scorer.
+     *
+     * @param records the records
+     * @return the molecule
+     * @throws Exception if the record cannot be parsed
+     */
+    @Benchmark
+    public Object iteratingSDFReader(final Records records) throws Exception {
+        return readMolecule(records.m_records[records.next()]);
+    }
+
+    /**
+     * Parses an already tokenised record into a molecule with the scorer's
+     * connection table parser.
+     *
+     * @param records the records
+     * @param parser a parser
+     * @return the molecule
+     */
+    @Benchmark
+    public Object ctabParser(final Records records, final Parser parser) {
+        int i = records.next();
+        MolfileBlock molfile = records.m_blocks[i].getMolfileBlock();
+        if (!parser.m_parser.parse(records.m_records[i],
+                molfile.getCtabBlock().getAtomCount(),
+                molfile.getCtabBlock().getBondCount())) {
+            throw new IllegalStateException("Record " + i + " not supported");
+        }
+        return parser.m_parser.createAtomContainer(
+                DefaultChemObjectBuilder.getInstance(), molfile.getTitle());
+    }
+
+    /**
+     * Computes a single descriptor for a molecule.
+     *
+     * @param records the records
+     * @param descriptor the descriptor
+     * @return the descriptor's value
+     */
+    @Benchmark
+    public double descriptor(final Records records,
+            final Descriptor descriptor) {
+        descriptor.m_engine.bind(records.m_molecules[records.next()]);
+        return descriptor.m_engine.get(descriptor.m_descriptor);
+    }
+
+    /**
+     * Creates the complete output row for a record: tokenising, parsing,
+     * computing the descriptors and the predictions and creating the cells.
+     *
+     * @param records the records
+     * @param scoring the scorer
+     * @return the result
+     */
+    @Benchmark
+    public Object score(final Records records, final Scoring scoring) {
+        return scoring.m_scorer.score(scoring.nextIndex(),
+                records.m_records[records.next()], scoring.m_source);
+    }
+
+    /**
+     * Runs all benchmarks with the GC profiler, which reports the allocation
+     * rate (<code>gc.alloc.rate.norm</code> is bytes per operation).
+     *
+     * @param args ignored
+     * @throws RunnerException if running the benchmarks fails
+     */
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(BBB_predictorHotPathBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,204 @@
+package org.cmdm;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.cmdm.BBB_predictorDefaultSDFReader.Record;
+import org.cmdm.BBB_predictorDefaultSDFReader.RecordHandler;
+import org.cmdm.BBB_predictorOrderedExecutor.ResultHandler;
+import org.cmdm.BBB_predictorScorer.Result;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Headless end-to-end benchmark of the reader and predictor path. An SD file,
+ * e.g. one written by {@link BBB_predictorSyntheticSDF}, is read, scored and
+ * handed to a result handler exactly as during the node's execution, only the
+ * output rows are counted instead of being written to a table. Each run
+ * reports the throughput in molecules per second, the 50th and 99th
+ * percentile of the time spent scoring a single molecule and the peak heap
+ * usage.
+ *
+ * <pre>
+ * BBB_predictorMacroBenchmark &lt;file&gt; [-threads n] [-runs n] [-cache]
+ *     [-dedup] [-index]
+ * </pre>
+ *
+ * By default the descriptor cache, duplicate detection and the record index
+ * are disabled, so that every run does the full work; the first of the
+ * (default three) runs should be regarded as warm-up.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorMacroBenchmark {
+    /**
+     * A histogram of latencies with a relative error of at most 1/
+     * {@link #SUB_BUCKETS}: values are grouped by their highest bit and the
+     * following bits.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 4;
+
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray m_counts =
+                new AtomicLongArray(64 * SUB_BUCKETS);
+
+        /**
+         * Adds a value, may be called concurrently.
+         *
+         * @param nanos a latency in nanoseconds
+         */
+        void add(final long nanos) {
+            m_counts.incrementAndGet(bucket(Math.max(nanos, 0)));
+        }
+
+        private static int bucket(final long v) {
+            if (v < SUB_BUCKETS) {
+                return (int)v;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS
+                    + (int)((v >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        /** The largest value that falls into a bucket. */
+        private static long upperBound(final int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+
+        /**
+         * Returns a percentile.
+         *
+         * @param p the percentile, between 0 and 100
+         * @return the (upper bound of the) latency in nanoseconds
+         */
+        long percentile(final double p) {
+            long total = 0;
+            for (int i = 0; i < m_counts.length(); i++) {
+                total += m_counts.get(i);
+            }
+            long rank = (long)Math.ceil(total * p / 100);
+            long seen = 0;
+            for (int i = 0; i < m_counts.length(); i++) {
+                seen += m_counts.get(i);
+                if ((seen >= rank) && (seen > 0)) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    private BBB_predictorMacroBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line arguments
+     * @throws Exception if reading or scoring fails
+     */
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BBB_predictorMacroBenchmark <file>"
+                    + " [-threads n] [-runs n] [-cache] [-dedup] [-index]");
+            System.exit(1);
+        }
+        BBB_predictorNodeSettings settings = new BBB_predictorNodeSettings();
+        settings.urls(Collections.singletonList(new File(args[0]).toURI()
+                .toURL()));
+        settings.useDescriptorCache(false);
+        settings.deduplicate(false);
+        settings.useRecordIndex(false);
+        settings.useCheckpoints(false);
+        int runs = 3;
+        for (int i = 1; i < args.length; i++) {
+            if ("-threads".equals(args[i])) {
+                settings.threads(Integer.parseInt(args[++i]));
+            } else if ("-runs".equals(args[i])) {
+                runs = Integer.parseInt(args[++i]);
+            } else if ("-cache".equals(args[i])) {
+                settings.useDescriptorCache(true);
+            } else if ("-dedup".equals(args[i])) {
+                settings.deduplicate(true);
+            } else if ("-index".equals(args[i])) {
+                settings.useRecordIndex(true);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        System.out.println("run  molecules  broken  mol/s  p50 [us]  p99 [us]"
+                + "  peak heap [MB]");
+        for (int r = 1; r <= runs; r++) {
+            run(r, settings);
+        }
+    }
+
+    private static void run(final int run,
+            final BBB_predictorNodeSettings settings) throws Exception {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        BBB_predictorDefaultSDFReader reader =
+                new BBB_predictorDefaultSDFReader(settings);
+        final BBB_predictorScorer scorer = new BBB_predictorScorer(settings,
+                reader, settings.properties(), new BBB_predictorMetrics(null));
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final long[] counts = new long[2];
+        final BBB_predictorOrderedExecutor<Result> executor =
+                new BBB_predictorOrderedExecutor<Result>(settings.threads(),
+                        new ResultHandler<Result>() {
+                            @Override
+                            public void handle(final Result result) {
+                                counts[(result.cells == null) ? 1 : 0]++;
+                            }
+                        });
+        ExecutionMonitor exec = new ExecutionMonitor();
+        long start = System.nanoTime();
+        try {
+            reader.read(exec, new RecordHandler() {
+                @Override
+                public void handle(final long index, final Record record,
+                        final URL source) throws Exception {
+                    executor.submit(new Callable<Result>() {
+                        @Override
+                        public Result call() {
+                            long t = System.nanoTime();
+                            Result result =
+                                    scorer.score(index, record.text(), source);
+                            latencies.add(System.nanoTime() - t);
+                            return result;
+                        }
+                    });
+                }
+            });
+            executor.finish(exec);
+        } finally {
+            executor.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        long molecules = counts[0] + counts[1];
+        System.out.printf("%3d  %9d  %6d  %5.0f  %8.1f  %8.1f  %14.1f%n", run,
+                molecules, counts[1], molecules / seconds,
+                latencies.percentile(50) / 1e3,
+                latencies.percentile(99) / 1e3, peak / (1024.0 * 1024));
+    }
+}
@@ -0,0 +1,327 @@
+package org.cmdm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Generates synthetic but chemically valid SDF records for the benchmarks.
+ * Molecules are random trees of C, N, O, S and halogen atoms with a few ring
+ * closures and double bonds, written as V2000 connection tables. The output
+ * only depends on the seed, so every run of a benchmark sees the same
+ * molecules.
+ * <p>
+ * Run {@link #main(String[])} to write a whole file with varying atom and
+ * property counts and a fraction of malformed records, e.g. as input for
+ * {@link BBB_predictorMacroBenchmark}.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorSyntheticSDF {
+    private static final String[] SYMBOLS = {"C", "N", "O", "S", "F", "Cl"};
+
+    private static final int[] VALENCES = {4, 3, 2, 2, 1, 1};
+
+    /** Cumulative frequencies (per 100) of the symbols above. */
+    private static final int[] FREQUENCIES = {70, 82, 94, 96, 98, 100};
+
+    private final Random m_random;
+
+    private int m_count;
+
+    /**
+     * Creates a new generator.
+     *
+     * @param seed the seed of the random generator
+     */
+    BBB_predictorSyntheticSDF(final long seed) {
+        m_random = new Random(seed);
+    }
+
+    /**
+     * Creates the next record.
+     *
+     * @param heavyAtoms the number of atoms, the molecule may be slightly
+     *            smaller if no atom with a free valence is left
+     * @param properties the number of data items appended to the record
+     * @return the record including its <code>$$$$</code> line
+     */
+    String record(final int heavyAtoms, final int properties) {
+        int[] elements = new int[heavyAtoms];
+        int[] used = new int[heavyAtoms];
+        int[] bonds = new int[3 * 2 * heavyAtoms];
+        int bondCount = 0;
+        int atoms = 0;
+        int[] candidates = new int[heavyAtoms];
+        for (int i = 0; i < heavyAtoms; i++) {
+            int n = 0;
+            for (int j = 0; j < atoms; j++) {
+                if (used[j] < VALENCES[elements[j]]) {
+                    candidates[n++] = j;
+                }
+            }
+            if ((atoms > 0) && (n == 0)) {
+                break;
+            }
+            int element = element();
+            if ((atoms == 0) && (heavyAtoms > 1)) {
+                // the first atom must be able to take a neighbour
+                element = 0;
+            }
+            elements[atoms] = element;
+            if (atoms > 0) {
+                int parent = candidates[m_random.nextInt(n)];
+                bondCount = addBond(bonds, bondCount, parent, atoms, 1);
+                used[parent]++;
+                used[atoms]++;
+            }
+            atoms++;
+        }
+        // ring closures and double bonds between atoms with free valences
+        for (int k = 0; k < atoms / 6; k++) {
+            int a = m_random.nextInt(atoms);
+            int b = m_random.nextInt(atoms);
+            if ((a != b) && (used[a] < VALENCES[elements[a]])
+                    && (used[b] < VALENCES[elements[b]])) {
+                int existing = findBond(bonds, bondCount, a, b);
+                if (existing < 0) {
+                    bondCount = addBond(bonds, bondCount, a, b, 1);
+                } else if (bonds[existing + 2] < 2) {
+                    bonds[existing + 2]++;
+                } else {
+                    continue;
+                }
+                used[a]++;
+                used[b]++;
+            }
+        }
+        return format(elements, atoms, bonds, bondCount, properties);
+    }
+
+    /**
+     * Creates a record that cannot be read: its counts line is garbage, its
+     * atom block is truncated or a bond refers to an atom that does not
+     * exist.
+     *
+     * @param heavyAtoms the number of atoms of the underlying molecule
+     * @param properties the number of data items appended to the record
+     * @return the record including its <code>$$$$</code> line
+     */
+    String malformedRecord(final int heavyAtoms, final int properties) {
+        String record = record(Math.max(heavyAtoms, 2), properties);
+        String[] lines = record.split("\n", -1);
+        int atoms = Integer.parseInt(lines[3].substring(0, 3).trim());
+        StringBuilder buf = new StringBuilder(record.length());
+        switch (m_random.nextInt(3)) {
+            case 0:
+                lines[3] = "xx?yy?" + lines[3].substring(6);
+                break;
+            case 1:
+                // drop the second half of the atom block
+                for (int i = 4 + atoms / 2; i < 4 + atoms; i++) {
+                    lines[i] = null;
+                }
+                break;
+            default:
+                lines[4 + atoms] = "  1999  1  0  0  0  0";
+                break;
+        }
+        for (int i = 0; i < lines.length - 1; i++) {
+            if (lines[i] != null) {
+                buf.append(lines[i]).append('\n');
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Writes a file of synthetic records.
+     *
+     * @param file the file
+     * @param records the number of records
+     * @param minAtoms the minimum number of heavy atoms per molecule
+     * @param maxAtoms the maximum number of heavy atoms per molecule
+     * @param minProperties the minimum number of data items per record
+     * @param maxProperties the maximum number of data items per record
+     * @param malformed the fraction of malformed records, between 0 and 1
+     * @throws IOException if writing fails
+     */
+    void write(final File file, final long records, final int minAtoms,
+            final int maxAtoms, final int minProperties,
+            final int maxProperties, final double malformed)
+            throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), Charset.defaultCharset()),
+                1 << 20);
+        try {
+            for (long i = 0; i < records; i++) {
+                int atoms = minAtoms + m_random.nextInt(maxAtoms - minAtoms + 1);
+                int properties = minProperties
+                        + m_random.nextInt(maxProperties - minProperties + 1);
+                if (m_random.nextDouble() < malformed) {
+                    out.write(malformedRecord(atoms, properties));
+                } else {
+                    out.write(record(atoms, properties));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a synthetic SD file.
+     *
+     * <pre>
+     * BBB_predictorSyntheticSDF &lt;file&gt; &lt;records&gt; [-atoms min:max]
+     *     [-properties min:max] [-malformed fraction] [-seed seed]
+     * </pre>
+     *
+     * The defaults are 5 to 80 atoms, 0 to 10 properties, 1% malformed
+     * records and seed 42.
+     *
+     * @param args the command line arguments
+     * @throws IOException if writing fails
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BBB_predictorSyntheticSDF <file> <records>"
+                    + " [-atoms min:max] [-properties min:max]"
+                    + " [-malformed fraction] [-seed seed]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        long records = Long.parseLong(args[1]);
+        int[] atoms = {5, 80};
+        int[] properties = {0, 10};
+        double malformed = 0.01;
+        long seed = 42;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            if ("-atoms".equals(args[i])) {
+                atoms = range(args[i + 1]);
+            } else if ("-properties".equals(args[i])) {
+                properties = range(args[i + 1]);
+            } else if ("-malformed".equals(args[i])) {
+                malformed = Double.parseDouble(args[i + 1]);
+            } else if ("-seed".equals(args[i])) {
+                seed = Long.parseLong(args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        long start = System.nanoTime();
+        new BBB_predictorSyntheticSDF(seed).write(file, records, atoms[0],
+                atoms[1], properties[0], properties[1], malformed);
+        System.out.printf("Wrote %d records (%d bytes) to %s in %.1f s%n",
+                records, file.length(), file,
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    private static int[] range(final String s) {
+        int colon = s.indexOf(':');
+        if (colon < 0) {
+            int v = Integer.parseInt(s);
+            return new int[]{v, v};
+        }
+        return new int[]{Integer.parseInt(s.substring(0, colon)),
+            Integer.parseInt(s.substring(colon + 1))};
+    }
+
+    private int element() {
+        int r = m_random.nextInt(100);
+        int i = 0;
+        while (r >= FREQUENCIES[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int addBond(final int[] bonds, final int count,
+            final int a, final int b, final int order) {
+        int pos = 3 * count;
+        bonds[pos] = a;
+        bonds[pos + 1] = b;
+        bonds[pos + 2] = order;
+        return count + 1;
+    }
+
+    private static int findBond(final int[] bonds, final int count,
+            final int a, final int b) {
+        for (int pos = 0; pos < 3 * count; pos += 3) {
+            if (((bonds[pos] == a) && (bonds[pos + 1] == b))
+                    || ((bonds[pos] == b) && (bonds[pos + 1] == a))) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private String format(final int[] elements, final int atoms,
+            final int[] bonds, final int bondCount, final int properties) {
+        int id = ++m_count;
+        StringBuilder buf = new StringBuilder(100 + 70 * atoms + 22 * bondCount
+                + 30 * properties);
+        buf.append("SYN-").append(id).append('\n');
+        buf.append("  BBB_predictor benchmark\n\n");
+        pad(buf, atoms, 3);
+        pad(buf, bondCount, 3);
+        buf.append("  0  0  0  0  0  0  0  0999 V2000\n");
+        for (int i = 0; i < atoms; i++) {
+            coordinate(buf, m_random.nextDouble() * 20 - 10);
+            coordinate(buf, m_random.nextDouble() * 20 - 10);
+            coordinate(buf, 0);
+            buf.append(' ');
+            String symbol = SYMBOLS[elements[i]];
+            buf.append(symbol);
+            for (int j = symbol.length(); j < 3; j++) {
+                buf.append(' ');
+            }
+            buf.append(" 0  0  0  0  0  0  0  0  0  0  0  0\n");
+        }
+        for (int pos = 0; pos < 3 * bondCount; pos += 3) {
+            pad(buf, bonds[pos] + 1, 3);
+            pad(buf, bonds[pos + 1] + 1, 3);
+            pad(buf, bonds[pos + 2], 3);
+            buf.append("  0  0  0  0\n");
+        }
+        buf.append("M  END\n");
+        for (int p = 0; p < properties; p++) {
+            buf.append("> <PROP_").append(p).append(">\n");
+            if (p % 2 == 0) {
+                buf.append(m_random.nextInt(1000));
+            } else {
+                buf.append("value-").append(id).append('-').append(p);
+            }
+            buf.append("\n\n");
+        }
+        buf.append("$$$$\n");
+        return buf.toString();
+    }
+
+    private static void pad(final StringBuilder buf, final int value,
+            final int width) {
+        String s = Integer.toString(value);
+        for (int i = s.length(); i < width; i++) {
+            buf.append(' ');
+        }
+        buf.append(s);
+    }
+
+    /**
+     * Appends a coordinate in the <code>%10.4f</code> format of atom lines.
+     */
+    private static void coordinate(final StringBuilder buf, final double v) {
+        long scaled = Math.round(Math.abs(v) * 10000);
+        String s = ((v < 0) && (scaled != 0) ? "-" : "") + (scaled / 10000)
+                + "." + (10000 + scaled % 10000 + "").substring(1);
+        for (int i = s.length(); i < 10; i++) {
+            buf.append(' ');
+        }
+        buf.append(s);
+    }
+}
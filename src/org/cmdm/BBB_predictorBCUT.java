@@ -0,0 +1,396 @@
+package org.cmdm;
+
+import java.io.IOException;
+
+import org.knime.core.node.NodeLogger;
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.config.Isotopes;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IIsotope;
+
+/**
+ * Computes the BCUT value the predictions use, the lowest eigenvalue of the
+ * mass weighted Burden matrix of the heavy atoms, without CDK's
+ * <code>BCUTDescriptor</code>. CDK types a copy of the molecule, adds explicit
+ * hydrogens, computes Gasteiger charges and polarizabilities and fully
+ * decomposes three matrices, of which only one eigenvalue is needed here.
+ * This class builds the one matrix in a primitive array, reduces it to
+ * tridiagonal form with Householder reflections and finds the lowest
+ * eigenvalue by bisection on the Sturm sequence.
+ * <p>
+ * The matrix is built exactly as CDK 1.5.13's <code>BurdenMatrix</code>
+ * builds it, from the molecule without its removable hydrogens: the heavy
+ * atoms' major isotope masses on the diagonal and, for every pair of heavy
+ * atoms, a value set by a loop over all bonds that does not stop at the
+ * pair's own bond. Each bond overwrites the pair's value, with the bond's
+ * weight if it joins the pair and with 0.001 otherwise, so the last bond
+ * between heavy atoms decides every pair: its own pair gets 0.1, 0.2 or 0.3
+ * for a single, double or triple bond and 0.15 for an aromatic bond, plus
+ * 0.01 if one of its atoms has no other heavy neighbour, and all other pairs,
+ * bonded or not, get 0.001. Without bonds between heavy atoms the loop never
+ * runs and all pairs keep 0.
+ * <p>
+ * {@link #compute(IAtomContainer)} returns NaN for molecules it does not
+ * handle, the caller then has to use CDK: molecules with explicit hydrogens
+ * CDK would not remove, pseudo atoms or bond orders other than single, double
+ * and triple, and molecules CDK may not be able to compute, for which it
+ * returns NaN itself: those with untyped atoms or with elements that have no
+ * Gasteiger-Marsili parameters, since CDK computes the charge weighted matrix
+ * before it returns any value. An instance is not thread safe, each
+ * descriptor engine has its own.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorBCUT {
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(BBB_predictorBCUT.class);
+
+    private static final double UNBONDED = 0.001;
+
+    private static final double TERMINAL = 0.01;
+
+    /**
+     * The elements CDK's Gasteiger-Marsili charges support, indexed by
+     * atomic number.
+     */
+    private static final boolean[] CHARGED = new boolean[128];
+
+    static {
+        for (int z : new int[]{1, 6, 7, 8, 9, 15, 16, 17, 35, 53}) {
+            CHARGED[z] = true;
+        }
+    }
+
+    /** Major isotope masses indexed by atomic number, 0 if not looked up. */
+    private final double[] m_masses = new double[128];
+
+    private int m_atomCount;
+
+    private int m_bondCount;
+
+    /** Heavy atom index of each atom, -1 for removed hydrogens. */
+    private int[] m_heavyIndex = new int[64];
+
+    /** The number of neighbours of each atom, to check the hydrogens. */
+    private int[] m_degrees = new int[64];
+
+    private int[] m_heavyDegrees = new int[64];
+
+    private double[] m_diagonal = new double[64];
+
+    private int[] m_bondAtoms = new int[128];
+
+    private double[] m_bondWeights = new double[64];
+
+    private double[] m_matrix = new double[64 * 64];
+
+    private double[] m_d = new double[64];
+
+    private double[] m_e = new double[64];
+
+    /**
+     * Returns the lowest eigenvalue of the molecule's mass weighted Burden
+     * matrix.
+     *
+     * @param typed a copy of the molecule with atom types, implicit
+     *            hydrogens and perceived aromaticity
+     * @return the eigenvalue, or NaN if the molecule must be passed to CDK
+     */
+    double compute(final IAtomContainer typed) {
+        return load(typed) ? lowestEigenvalue() : Double.NaN;
+    }
+
+    /**
+     * Reads the heavy atoms' masses and the bonds between them.
+     *
+     * @return <code>false</code> if the molecule must be passed to CDK
+     */
+    private boolean load(final IAtomContainer molecule) {
+        int atomCount = molecule.getAtomCount();
+        int bondCount = molecule.getBondCount();
+        ensureCapacity(atomCount, bondCount);
+        int[] heavyIndex = m_heavyIndex;
+        int n = 0;
+        for (int i = 0; i < atomCount; i++) {
+            IAtom atom = molecule.getAtom(i);
+            Integer atomicNumber = atom.getAtomicNumber();
+            if ((atomicNumber == null) || (atomicNumber <= 0)
+                    || (atomicNumber >= m_masses.length)
+                    || !CHARGED[atomicNumber]) {
+                return false;
+            }
+            String type = atom.getAtomTypeName();
+            if ((type == null) || "X".equals(type)) {
+                return false;
+            }
+            m_degrees[i] = 0;
+            if (atomicNumber == BBB_predictorElements.H) {
+                Integer charge = atom.getFormalCharge();
+                if (((charge != null) && (charge != 0))
+                        || (atom.getMassNumber() != null)) {
+                    return false;
+                }
+                heavyIndex[i] = -1;
+            } else {
+                double mass = mass(atomicNumber, atom);
+                if (Double.isNaN(mass)) {
+                    return false;
+                }
+                heavyIndex[i] = n;
+                m_diagonal[n] = mass;
+                m_heavyDegrees[n] = 0;
+                n++;
+            }
+        }
+        if (n == 0) {
+            return false;
+        }
+        m_atomCount = n;
+
+        int bonds = 0;
+        for (int k = 0; k < bondCount; k++) {
+            IBond bond = molecule.getBond(k);
+            if (bond.getAtomCount() != 2) {
+                return false;
+            }
+            int a = molecule.getAtomNumber(bond.getAtom(0));
+            int b = molecule.getAtomNumber(bond.getAtom(1));
+            if ((a < 0) || (b < 0)) {
+                return false;
+            }
+            // CDK's charges need the bond orders, also of aromatic bonds
+            IBond.Order order = bond.getOrder();
+            if ((order != IBond.Order.SINGLE) && (order != IBond.Order.DOUBLE)
+                    && (order != IBond.Order.TRIPLE)) {
+                return false;
+            }
+            m_degrees[a]++;
+            m_degrees[b]++;
+            int ha = heavyIndex[a];
+            int hb = heavyIndex[b];
+            if ((ha < 0) && (hb < 0)) {
+                // H2, CDK keeps both atoms
+                return false;
+            } else if ((ha < 0) || (hb < 0)) {
+                continue;
+            }
+            double weight;
+            if (bond.getFlag(CDKConstants.ISAROMATIC)) {
+                weight = 0.15;
+            } else if (order == IBond.Order.SINGLE) {
+                weight = 0.1;
+            } else if (order == IBond.Order.DOUBLE) {
+                weight = 0.2;
+            } else {
+                weight = 0.3;
+            }
+            m_bondAtoms[2 * bonds] = ha;
+            m_bondAtoms[2 * bonds + 1] = hb;
+            m_bondWeights[bonds] = weight;
+            m_heavyDegrees[ha]++;
+            m_heavyDegrees[hb]++;
+            bonds++;
+        }
+        // CDK only removes hydrogens with exactly one neighbour
+        for (int i = 0; i < atomCount; i++) {
+            if ((heavyIndex[i] < 0) && (m_degrees[i] != 1)) {
+                return false;
+            }
+        }
+        m_bondCount = bonds;
+        return true;
+    }
+
+    private double mass(final int atomicNumber, final IAtom atom) {
+        double mass = m_masses[atomicNumber];
+        if (mass == 0) {
+            mass = Double.NaN;
+            try {
+                IIsotope isotope =
+                        Isotopes.getInstance().getMajorIsotope(atom.getSymbol());
+                if ((isotope != null) && (isotope.getExactMass() != null)) {
+                    mass = isotope.getExactMass();
+                }
+            } catch (IOException ex) {
+                LOGGER.debug("Could not read isotope table: "
+                        + ex.getMessage(), ex);
+            }
+            m_masses[atomicNumber] = mass;
+        }
+        return mass;
+    }
+
+    private void ensureCapacity(final int atomCount, final int bondCount) {
+        if (m_heavyIndex.length < atomCount) {
+            int size = Math.max(atomCount, m_heavyIndex.length * 2);
+            m_heavyIndex = new int[size];
+            m_degrees = new int[size];
+            m_heavyDegrees = new int[size];
+            m_diagonal = new double[size];
+            m_d = new double[size];
+            m_e = new double[size];
+            m_matrix = new double[size * size];
+        }
+        if (m_bondWeights.length < bondCount) {
+            int size = Math.max(bondCount, m_bondWeights.length * 2);
+            m_bondAtoms = new int[2 * size];
+            m_bondWeights = new double[size];
+        }
+    }
+
+    /**
+     * Fills the lower triangle of the Burden matrix of the loaded molecule
+     * and returns its lowest eigenvalue.
+     */
+    private double lowestEigenvalue() {
+        int n = m_atomCount;
+        double[] a = m_matrix;
+        // CDK's loop over the bonds sets the pairs, without bonds they stay 0
+        double unbonded = (m_bondCount > 0) ? UNBONDED : 0;
+        for (int i = 0; i < n; i++) {
+            int row = i * n;
+            for (int j = 0; j < i; j++) {
+                a[row + j] = unbonded;
+            }
+            a[row + i] = m_diagonal[i];
+        }
+        if (m_bondCount > 0) {
+            // the last bond is the last to overwrite every pair
+            int k = m_bondCount - 1;
+            int i = m_bondAtoms[2 * k];
+            int j = m_bondAtoms[2 * k + 1];
+            double weight = m_bondWeights[k];
+            if ((m_heavyDegrees[i] == 1) || (m_heavyDegrees[j] == 1)) {
+                weight += TERMINAL;
+            }
+            a[Math.max(i, j) * n + Math.min(i, j)] = weight;
+        }
+        tridiagonalize(a, n, m_d, m_e);
+        return lowestEigenvalue(m_d, m_e, n);
+    }
+
+    /**
+     * Reduces a symmetric matrix to tridiagonal form by Householder
+     * reflections, without accumulating the transformations. Only the lower
+     * triangle of the row-major matrix is read, it is overwritten.
+     *
+     * @param a the matrix
+     * @param n its dimension
+     * @param d receives the diagonal
+     * @param e receives the subdiagonal, <code>e[i]</code> couples
+     *            <code>i - 1</code> and <code>i</code>
+     */
+    static void tridiagonalize(final double[] a, final int n, final double[] d,
+            final double[] e) {
+        for (int i = n - 1; i > 0; i--) {
+            int l = i - 1;
+            int ri = i * n;
+            double h = 0;
+            if (l > 0) {
+                double scale = 0;
+                for (int k = 0; k <= l; k++) {
+                    scale += Math.abs(a[ri + k]);
+                }
+                if (scale == 0) {
+                    e[i] = a[ri + l];
+                } else {
+                    for (int k = 0; k <= l; k++) {
+                        a[ri + k] /= scale;
+                        h += a[ri + k] * a[ri + k];
+                    }
+                    double f = a[ri + l];
+                    double g = (f >= 0) ? -Math.sqrt(h) : Math.sqrt(h);
+                    e[i] = scale * g;
+                    h -= f * g;
+                    a[ri + l] = f - g;
+                    f = 0;
+                    for (int j = 0; j <= l; j++) {
+                        int rj = j * n;
+                        g = 0;
+                        for (int k = 0; k <= j; k++) {
+                            g += a[rj + k] * a[ri + k];
+                        }
+                        for (int k = j + 1; k <= l; k++) {
+                            g += a[k * n + j] * a[ri + k];
+                        }
+                        e[j] = g / h;
+                        f += e[j] * a[ri + j];
+                    }
+                    double hh = f / (h + h);
+                    for (int j = 0; j <= l; j++) {
+                        int rj = j * n;
+                        f = a[ri + j];
+                        g = e[j] - hh * f;
+                        e[j] = g;
+                        for (int k = 0; k <= j; k++) {
+                            a[rj + k] -= f * e[k] + g * a[ri + k];
+                        }
+                    }
+                }
+            } else {
+                e[i] = a[ri + l];
+            }
+        }
+        e[0] = 0;
+        for (int i = 0; i < n; i++) {
+            d[i] = a[i * n + i];
+        }
+    }
+
+    /**
+     * Finds the lowest eigenvalue of a symmetric tridiagonal matrix by
+     * bisection, counting the negative pivots of <code>T - xI</code>.
+     *
+     * @param d the diagonal
+     * @param e the subdiagonal as returned by
+     *            {@link #tridiagonalize(double[], int, double[], double[])}
+     * @param n the dimension
+     * @return the eigenvalue
+     */
+    static double lowestEigenvalue(final double[] d, final double[] e,
+            final int n) {
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        double pivmin = Double.MIN_NORMAL;
+        for (int i = 0; i < n; i++) {
+            double r = ((i > 0) ? Math.abs(e[i]) : 0)
+                    + ((i < n - 1) ? Math.abs(e[i + 1]) : 0);
+            lo = Math.min(lo, d[i] - r);
+            hi = Math.max(hi, d[i] + r);
+            if (i > 0) {
+                pivmin = Math.max(pivmin, e[i] * e[i] * Double.MIN_NORMAL);
+            }
+        }
+        double eps = Math.ulp(1.0) * Math.max(Math.abs(lo), Math.abs(hi));
+        while (hi - lo > 2 * eps) {
+            double mid = 0.5 * (lo + hi);
+            if ((mid <= lo) || (mid >= hi)) {
+                break;
+            }
+            if (hasEigenvalueBelow(d, e, n, mid, pivmin)) {
+                hi = mid;
+            } else {
+                lo = mid;
+            }
+        }
+        return 0.5 * (lo + hi);
+    }
+
+    private static boolean hasEigenvalueBelow(final double[] d,
+            final double[] e, final int n, final double x, final double pivmin) {
+        double q = d[0] - x;
+        for (int i = 0; ; i++) {
+            if (Math.abs(q) < pivmin) {
+                q = -pivmin;
+            }
+            if (q < 0) {
+                return true;
+            }
+            if (i == n - 1) {
+                return false;
+            }
+            q = d[i + 1] - x - e[i + 1] * e[i + 1] / q;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package org.cmdm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.knime.core.node.NodeLogger;
+import org.knime.core.util.FileUtil;
+
+/**
+ * Checkpoint of a running execution, allowing a cancelled or crashed run to
+ * be resumed. For every record that has been written to the output the
+ * checkpoint stores the prediction values in record order; all other output
+ * cells are recreated cheaply from the records themselves. When the node is
+ * executed again with the same input files and predictions, the records up
+ * to the last checkpoint get their predictions from the checkpoint and are
+ * neither parsed nor are their descriptors computed.
+ * <p>
+ * Checkpoints live in the plug-in's cache directory, keyed by a hash of the
+ * input files' paths, sizes and modification times and the enabled
+ * predictions. Records are appended as they are written and forced to disk
+ * every {@link #FLUSH_INTERVAL} milliseconds; a partially written record at
+ * the end is discarded when the checkpoint is opened again. The checkpoint is
+ * deleted once an execution has finished successfully.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorCheckpoint {
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(BBB_predictorCheckpoint.class);
+
+    /** The time in milliseconds between two checkpoints. */
+    static final long FLUSH_INTERVAL = 10000;
+
+    /** Checkpoints that have not been touched for this long are deleted. */
+    private static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    private static final String SUFFIX = ".ckpt";
+
+    private static final int MAGIC = 0x4242424b; // "BBBK"
+
+    /** Must be increased whenever predictions are computed differently. */
+    private static final int VERSION = 2;
+
+    /** magic, version, number of predictions, reserved */
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte SCORED = 0;
+
+    private static final byte BROKEN = 1;
+
+    private final File m_file;
+
+    private final RandomAccessFile m_raf;
+
+    private final FileLock m_lock;
+
+    private final int m_predictions;
+
+    private final int m_entrySize;
+
+    private final long m_committed;
+
+    private final MappedByteBuffer m_restored;
+
+    private final DataOutputStream m_out;
+
+    private long m_next;
+
+    private long m_lastFlush = System.currentTimeMillis();
+
+    private BBB_predictorCheckpoint(final File file, final RandomAccessFile raf,
+            final FileLock lock, final int predictions) throws IOException {
+        m_file = file;
+        m_raf = raf;
+        m_lock = lock;
+        m_predictions = predictions;
+        m_entrySize = 1 + 8 * predictions;
+
+        long committed = 0;
+        if ((raf.length() >= HEADER_SIZE) && (raf.readInt() == MAGIC)
+                && (raf.readInt() == VERSION)
+                && (raf.readInt() == predictions)) {
+            committed = (raf.length() - HEADER_SIZE) / m_entrySize;
+            // only as many records as fit into a single mapping are restored
+            committed = Math.min(committed, Integer.MAX_VALUE / m_entrySize);
+        } else {
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(predictions);
+            raf.writeInt(0);
+        }
+        m_committed = committed;
+        // drop a partially written record
+        raf.setLength(HEADER_SIZE + committed * m_entrySize);
+        m_restored = (committed > 0) ? raf.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                committed * m_entrySize) : null;
+        raf.seek(raf.length());
+        m_out = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(raf.getChannel()), 1 << 16));
+    }
+
+    /**
+     * Opens the checkpoint for the input files and predictions of the given
+     * settings.
+     *
+     * @param settings the node settings
+     * @param predictions the number of enabled predictions
+     * @return the checkpoint or <code>null</code> if the input cannot be
+     *         identified reliably (i.e. it is not made of local files) or the
+     *         checkpoint is in use by another execution
+     */
+    static BBB_predictorCheckpoint open(
+            final BBB_predictorNodeSettings settings, final int predictions) {
+        String key = key(settings);
+        if (key == null) {
+            return null;
+        }
+        File dir = new File(BBB_predictorDescriptorCache.cacheDirectory(),
+                "checkpoints");
+        dir.mkdirs();
+        deleteStale(dir);
+        File file = new File(dir, key + SUFFIX);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                raf.close();
+                return null;
+            }
+            return new BBB_predictorCheckpoint(file, raf, lock, predictions);
+        } catch (IOException ex) {
+            LOGGER.warn("Could not open checkpoint '" + file + "': "
+                    + ex.getMessage(), ex);
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex1) {
+                    // ignore
+                }
+            }
+            return null;
+        }
+    }
+
+    private static String key(final BBB_predictorNodeSettings settings) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(VERSION).append('|').append(settings.isLogBBclassify())
+                .append(settings.isLogPSclassify())
+                .append(settings.isLogBBreg()).append(settings.isLogPSreg());
+        for (URL url : settings.urls()) {
+            File f = FileUtil.getFileFromURL(url);
+            if ((f == null) || !f.isFile()) {
+                return null;
+            }
+            buf.append('|').append(f.getAbsolutePath()).append('|')
+                    .append(f.length()).append('|').append(f.lastModified());
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    buf.toString().getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            return null;
+        }
+    }
+
+    private static void deleteStale(final File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File f : files) {
+            if (f.getName().endsWith(SUFFIX)
+                    && (now - f.lastModified() > MAX_AGE)) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of records whose predictions can be restored.
+     *
+     * @return the number of records
+     */
+    long committed() {
+        return m_committed;
+    }
+
+    /**
+     * Returns the stored predictions of a record. May be called concurrently
+     * by several threads.
+     *
+     * @param index the record's index
+     * @return the prediction values, NaN for missing values, or
+     *         <code>null</code> if the record has not been checkpointed or
+     *         could not be scored
+     */
+    double[] restore(final long index) {
+        if (index >= m_committed) {
+            return null;
+        }
+        int pos = (int)(index * m_entrySize);
+        if (m_restored.get(pos) != SCORED) {
+            return null;
+        }
+        double[] values = new double[m_predictions];
+        for (int i = 0; i < m_predictions; i++) {
+            values[i] = m_restored.getDouble(pos + 1 + 8 * i);
+        }
+        return values;
+    }
+
+    /**
+     * Adds the next record to the checkpoint. Must be called for every record
+     * in record order, including those that have been restored.
+     *
+     * @param values the record's prediction values, NaN for missing values,
+     *            or <code>null</code> if the record could not be scored
+     * @throws IOException if writing fails
+     */
+    void append(final double[] values) throws IOException {
+        long index = m_next++;
+        if (index < m_committed) {
+            return;
+        }
+        if (values == null) {
+            m_out.writeByte(BROKEN);
+            for (int i = 0; i < m_predictions; i++) {
+                m_out.writeDouble(Double.NaN);
+            }
+        } else {
+            m_out.writeByte(SCORED);
+            for (int i = 0; i < m_predictions; i++) {
+                m_out.writeDouble(values[i]);
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (now - m_lastFlush >= FLUSH_INTERVAL) {
+            flush();
+            m_lastFlush = now;
+        }
+    }
+
+    private void flush() throws IOException {
+        m_out.flush();
+        m_raf.getChannel().force(false);
+    }
+
+    /**
+     * Writes all records added so far to disk and closes the checkpoint, so
+     * that a later execution can resume from it.
+     */
+    void close() {
+        try {
+            try {
+                flush();
+            } finally {
+                m_lock.release();
+                m_raf.close();
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Could not write checkpoint '" + m_file + "': "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Closes and deletes the checkpoint after a successful execution.
+     */
+    void delete() {
+        try {
+            m_lock.release();
+            m_raf.close();
+        } catch (IOException ex) {
+            // ignore, the file is deleted anyway
+        }
+        if (!m_file.delete()) {
+            m_file.deleteOnExit();
+        }
+    }
+}
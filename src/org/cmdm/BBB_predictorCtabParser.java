@@ -0,0 +1,368 @@
+package org.cmdm;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IChemObjectBuilder;
+
+/**
+ * Reads the connection table of a V2000 SDF record directly from the record's
+ * text into primitive arrays, from which a CDK molecule can be created or a
+ * {@link BBB_predictorMoleculeGraph} filled without running the record
+ * through a second, general purpose SDF reader. Only the information the
+ * descriptors depend on is read: elements, formal charges, bonds and, via the
+ * MDL valence model, implicit hydrogens. Coordinates and stereo flags are
+ * skipped. While the atom block is scanned, the carbon and hetero atoms are
+ * counted, which is all Mannhold LogP depends on; they are passed on to the
+ * graph, so that records scored from it need no molecule for Mannhold LogP.
+ * <p>
+ * Records using features this parser does not understand (V3000, query atoms
+ * and bonds, aromatic bond types, aliases, isotopes, radicals or elements and
+ * charges outside the covered valence model) are rejected by
+ * {@link #parse(String, int, int)}, callers should then fall back to CDK's
+ * reader. A parser keeps its arrays between records and must not be shared
+ * between threads.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorCtabParser {
+    private static final IBond.Order[] ORDERS = {null, IBond.Order.SINGLE,
+        IBond.Order.DOUBLE, IBond.Order.TRIPLE};
+
+    private static final int INVALID = Integer.MIN_VALUE;
+
+    private String m_text;
+
+    private int m_lineStart;
+
+    private int m_lineEnd;
+
+    private int m_next;
+
+    private int m_atomCount;
+
+    private int m_bondCount;
+
+    private int m_carbonCount;
+
+    private int m_heteroAtomCount;
+
+    private int[] m_atomicNumbers = new int[64];
+
+    private int[] m_charges = new int[64];
+
+    private int[] m_valences = new int[64];
+
+    private int[] m_hydrogens = new int[64];
+
+    private int[] m_bondAtoms = new int[128];
+
+    private int[] m_bondOrders = new int[64];
+
+    /**
+     * Parses the connection table of an SDF record.
+     *
+     * @param mol the complete SDF record
+     * @param atomCount the number of atoms reported by the record's counts
+     *            line
+     * @param bondCount the number of bonds reported by the record's counts
+     *            line
+     * @return <code>true</code> if the record was parsed,
+     *         <code>false</code> if it uses features this parser does not
+     *         support
+     */
+    boolean parse(final String mol, final int atomCount, final int bondCount) {
+        m_text = mol;
+        m_next = 0;
+        m_atomCount = 0;
+        m_bondCount = 0;
+        m_carbonCount = 0;
+        m_heteroAtomCount = 0;
+        try {
+            return parseCtab(atomCount, bondCount);
+        } finally {
+            m_text = null;
+        }
+    }
+
+    private boolean parseCtab(final int atomCount, final int bondCount) {
+        // header block
+        for (int i = 0; i < 4; i++) {
+            if (!nextLine()) {
+                return false;
+            }
+        }
+        // counts line
+        if ((field(0, 3) != atomCount) || (field(3, 6) != bondCount)) {
+            return false;
+        }
+        int atomLists = field(6, 9);
+        if ((atomLists != 0) && (atomLists != INVALID)) {
+            return false;
+        }
+        if (m_text.startsWith("V3000", m_lineStart + 34)) {
+            return false;
+        }
+        ensureCapacity(atomCount, bondCount);
+
+        for (int i = 0; i < atomCount; i++) {
+            if (!nextLine() || !parseAtom(i)) {
+                return false;
+            }
+        }
+        m_atomCount = atomCount;
+        for (int i = 0; i < bondCount; i++) {
+            if (!nextLine() || !parseBond(i)) {
+                return false;
+            }
+        }
+        m_bondCount = bondCount;
+        if (!parseProperties()) {
+            return false;
+        }
+        return assignHydrogens();
+    }
+
+    private boolean parseAtom(final int index) {
+        int symbolStart = m_lineStart + 31;
+        if (m_lineEnd < symbolStart + 3) {
+            return false;
+        }
+        char first = m_text.charAt(symbolStart);
+        char second = m_text.charAt(symbolStart + 1);
+        if ((second != ' ') && (m_text.charAt(symbolStart + 2) != ' ')) {
+            return false;
+        }
+        int atomicNumber = BBB_predictorElements.atomicNumber(first, second);
+        if (atomicNumber == 0) {
+            return false;
+        }
+        int massDifference = field(34, 36);
+        int chargeCode = field(36, 39);
+        int valence = field(48, 51);
+        if ((massDifference != 0) || (chargeCode < 0) || (chargeCode > 7)
+                || (chargeCode == 4) || (valence < 0) || (valence > 15)) {
+            return false;
+        }
+        m_atomicNumbers[index] = atomicNumber;
+        m_charges[index] = (chargeCode == 0) ? 0 : 4 - chargeCode;
+        m_valences[index] = valence;
+        m_hydrogens[index] = 0;
+        // explicit hydrogens are neither carbon nor hetero atoms
+        if (atomicNumber == BBB_predictorElements.C) {
+            m_carbonCount++;
+        } else if (atomicNumber != BBB_predictorElements.H) {
+            m_heteroAtomCount++;
+        }
+        return true;
+    }
+
+    private boolean parseBond(final int index) {
+        int first = field(0, 3);
+        int second = field(3, 6);
+        int type = field(6, 9);
+        if ((first < 1) || (first > m_atomCount) || (second < 1)
+                || (second > m_atomCount) || (first == second) || (type < 1)
+                || (type >= ORDERS.length)) {
+            return false;
+        }
+        m_bondAtoms[2 * index] = first - 1;
+        m_bondAtoms[2 * index + 1] = second - 1;
+        m_bondOrders[index] = type;
+        return true;
+    }
+
+    private boolean parseProperties() {
+        while (nextLine()) {
+            if (lineStartsWith("M  END") || lineStartsWith(">")
+                    || lineStartsWith("$$$$")) {
+                return true;
+            }
+            if (lineStartsWith("M  CHG")) {
+                if (!parseCharges()) {
+                    return false;
+                }
+            } else if (lineStartsWith("A  ") || lineStartsWith("M  ISO")
+                    || lineStartsWith("M  RAD") || lineStartsWith("M  ALS")
+                    || lineStartsWith("M  RGP") || lineStartsWith("M  SUB")
+                    || lineStartsWith("M  UNS") || lineStartsWith("M  RBC")
+                    || lineStartsWith("M  LIN") || lineStartsWith("M  AAL")
+                    || lineStartsWith("M  APO")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseCharges() {
+        int count = field(6, 9);
+        if ((count < 1) || (count > 8)) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            int atom = field(9 + 8 * i, 13 + 8 * i);
+            int charge = field(13 + 8 * i, 17 + 8 * i);
+            if ((atom < 1) || (atom > m_atomCount) || (charge == INVALID)) {
+                return false;
+            }
+            m_charges[atom - 1] = charge;
+        }
+        return true;
+    }
+
+    private boolean assignHydrogens() {
+        int[] bondOrderSums = m_hydrogens;
+        for (int i = 0; i < m_bondCount; i++) {
+            bondOrderSums[m_bondAtoms[2 * i]] += m_bondOrders[i];
+            bondOrderSums[m_bondAtoms[2 * i + 1]] += m_bondOrders[i];
+        }
+        for (int i = 0; i < m_atomCount; i++) {
+            int sum = bondOrderSums[i];
+            int hydrogens;
+            if (m_valences[i] == 15) {
+                hydrogens = 0;
+            } else if (m_valences[i] != 0) {
+                hydrogens = Math.max(0, m_valences[i] - sum);
+            } else {
+                hydrogens = BBB_predictorElements.implicitHydrogens(
+                        m_atomicNumbers[i], m_charges[i], sum);
+                if (hydrogens < 0) {
+                    return false;
+                }
+            }
+            m_hydrogens[i] = hydrogens;
+        }
+        return true;
+    }
+
+    /**
+     * Creates a CDK molecule from the last record parsed successfully.
+     *
+     * @param builder the builder for the molecule, its atoms and bonds
+     * @param title the molecule's title, may be <code>null</code>
+     * @return a new molecule
+     */
+    IAtomContainer createAtomContainer(final IChemObjectBuilder builder,
+            final String title) {
+        IAtom[] atoms = new IAtom[m_atomCount];
+        for (int i = 0; i < m_atomCount; i++) {
+            IAtom atom = builder.newInstance(IAtom.class,
+                    BBB_predictorElements.symbol(m_atomicNumbers[i]));
+            atom.setAtomicNumber(m_atomicNumbers[i]);
+            atom.setFormalCharge(m_charges[i]);
+            atom.setImplicitHydrogenCount(m_hydrogens[i]);
+            atoms[i] = atom;
+        }
+        IBond[] bonds = new IBond[m_bondCount];
+        for (int i = 0; i < m_bondCount; i++) {
+            bonds[i] = builder.newInstance(IBond.class,
+                    atoms[m_bondAtoms[2 * i]], atoms[m_bondAtoms[2 * i + 1]],
+                    ORDERS[m_bondOrders[i]]);
+        }
+        IAtomContainer molecule = builder.newInstance(IAtomContainer.class);
+        molecule.setAtoms(atoms);
+        molecule.setBonds(bonds);
+        if (title != null) {
+            molecule.setProperty(CDKConstants.TITLE, title);
+        }
+        return molecule;
+    }
+
+    /**
+     * Fills a graph with the atoms and bonds of the last record parsed
+     * successfully, without creating a molecule.
+     *
+     * @param graph the graph
+     */
+    void fill(final BBB_predictorMoleculeGraph graph) {
+        graph.fill(m_atomCount, m_atomicNumbers, m_charges, m_hydrogens,
+                m_bondCount, m_bondAtoms, m_bondOrders, m_carbonCount,
+                m_heteroAtomCount);
+    }
+
+    private void ensureCapacity(final int atomCount, final int bondCount) {
+        if (m_atomicNumbers.length < atomCount) {
+            int size = Math.max(atomCount, m_atomicNumbers.length * 2);
+            m_atomicNumbers = new int[size];
+            m_charges = new int[size];
+            m_valences = new int[size];
+            m_hydrogens = new int[size];
+        }
+        if (m_bondOrders.length < bondCount) {
+            int size = Math.max(bondCount, m_bondOrders.length * 2);
+            m_bondAtoms = new int[2 * size];
+            m_bondOrders = new int[size];
+        }
+    }
+
+    /**
+     * Advances to the next line of the record.
+     *
+     * @return <code>false</code> if the end of the record has been reached
+     */
+    private boolean nextLine() {
+        if (m_next >= m_text.length()) {
+            return false;
+        }
+        m_lineStart = m_next;
+        int end = m_text.indexOf('\n', m_next);
+        if (end < 0) {
+            end = m_text.length();
+            m_next = end;
+        } else {
+            m_next = end + 1;
+        }
+        if ((end > m_lineStart) && (m_text.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        m_lineEnd = end;
+        return true;
+    }
+
+    private boolean lineStartsWith(final String prefix) {
+        return (m_lineEnd - m_lineStart >= prefix.length())
+                && m_text.startsWith(prefix, m_lineStart);
+    }
+
+    /**
+     * Reads an integer from a fixed width field of the current line. Missing
+     * and blank fields are read as 0.
+     *
+     * @param from the first column of the field
+     * @param to the column after the field
+     * @return the field's value or {@link #INVALID} if the field is not a
+     *         number
+     */
+    private int field(final int from, final int to) {
+        int start = m_lineStart + from;
+        int end = Math.min(m_lineStart + to, m_lineEnd);
+        while ((start < end) && (m_text.charAt(start) == ' ')) {
+            start++;
+        }
+        while ((end > start) && (m_text.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        if (start >= end) {
+            return 0;
+        }
+        boolean negative = false;
+        char c = m_text.charAt(start);
+        if ((c == '-') || (c == '+')) {
+            negative = (c == '-');
+            start++;
+            if (start == end) {
+                return INVALID;
+            }
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            c = m_text.charAt(i);
+            if ((c < '0') || (c > '9')) {
+                return INVALID;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+}
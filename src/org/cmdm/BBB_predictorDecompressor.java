@@ -0,0 +1,246 @@
+package org.cmdm;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a decompressing stream on a thread of its own and hands the
+ * decompressed bytes to the consumer through a bounded queue, so that
+ * decompression runs concurrently with parsing. At most {@link #QUEUE_BLOCKS}
+ * blocks of {@link #BLOCK_SIZE} bytes are buffered; the decompression thread
+ * waits if the consumer falls behind. Whatever ends the decompression thread,
+ * the end of the stream is queued, and an error is rethrown to the consumer.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorDecompressor extends InputStream {
+    /** The size of the blocks passed from the decompression thread. */
+    static final int BLOCK_SIZE = 1 << 16;
+
+    /** The maximum number of blocks waiting for the consumer. */
+    static final int QUEUE_BLOCKS = 16;
+
+    private static final byte[] EOF = new byte[0];
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * A stream that counts the bytes read from it, e.g. the compressed bytes
+     * consumed by a decompressor. The count may be read from any thread.
+     */
+    static final class CountingInputStream extends FilterInputStream {
+        private volatile long m_count;
+
+        /**
+         * Creates a new counting stream.
+         *
+         * @param in the underlying stream
+         */
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                m_count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                m_count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = super.skip(n);
+            m_count += skipped;
+            return skipped;
+        }
+
+        /**
+         * Returns the number of bytes read so far.
+         *
+         * @return the number of bytes
+         */
+        long count() {
+            return m_count;
+        }
+    }
+
+    private final BlockingQueue<byte[]> m_queue =
+            new ArrayBlockingQueue<byte[]>(QUEUE_BLOCKS);
+
+    private final Thread m_thread;
+
+    private volatile boolean m_closed;
+
+    private volatile Throwable m_error;
+
+    private byte[] m_block;
+
+    private int m_pos;
+
+    /**
+     * Starts decompressing.
+     *
+     * @param source the decompressing stream, it is read and closed by the
+     *            decompression thread
+     * @param name a name for the decompression thread
+     */
+    BBB_predictorDecompressor(final InputStream source, final String name) {
+        m_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decompress(source);
+            }
+        }, "BBB_predictor-decompress-" + THREAD_COUNT.incrementAndGet()
+                + " " + name);
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    private void decompress(final InputStream source) {
+        try {
+            try {
+                while (!m_closed) {
+                    byte[] block = new byte[BLOCK_SIZE];
+                    int n = fill(source, block);
+                    if (n <= 0) {
+                        break;
+                    }
+                    if (n < block.length) {
+                        byte[] b = new byte[n];
+                        System.arraycopy(block, 0, b, 0, n);
+                        block = b;
+                    }
+                    if (!put(block)) {
+                        return;
+                    }
+                }
+            } finally {
+                source.close();
+            }
+        } catch (InterruptedException ex) {
+            // closed by the consumer
+        } catch (Throwable ex) {
+            // not only I/O errors, a corrupt stream may also make the
+            // inflater throw runtime exceptions
+            m_error = ex;
+        } finally {
+            // the consumer waits for the end of the stream in any case
+            Thread.interrupted();
+            try {
+                put(EOF);
+            } catch (InterruptedException ex) {
+                // closed by the consumer
+            }
+        }
+    }
+
+    private static int fill(final InputStream in, final byte[] block)
+            throws IOException {
+        int n = 0;
+        while (n < block.length) {
+            int r = in.read(block, n, block.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    /**
+     * Waits until the block has been queued or the consumer closed the
+     * stream.
+     *
+     * @return <code>false</code> if the stream has been closed
+     */
+    private boolean put(final byte[] block) throws InterruptedException {
+        while (!m_closed) {
+            if (m_queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes sure a block with unread bytes is available.
+     *
+     * @return <code>false</code> at the end of the stream
+     */
+    private boolean nextBlock() throws IOException {
+        while ((m_block == null) || (m_pos >= m_block.length)) {
+            if (m_block == EOF) {
+                return false;
+            }
+            try {
+                m_block = m_queue.take();
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted while decompressing", ex);
+            }
+            m_pos = 0;
+            if (m_block == EOF) {
+                Throwable error = m_error;
+                if (error instanceof IOException) {
+                    throw (IOException)error;
+                } else if (error instanceof Error) {
+                    throw (Error)error;
+                } else if (error != null) {
+                    throw new IOException("Could not decompress: "
+                            + error.getMessage(), error);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) {
+            return -1;
+        }
+        return m_block[m_pos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, m_block.length - m_pos);
+        System.arraycopy(m_block, m_pos, b, off, n);
+        m_pos += n;
+        return n;
+    }
+
+    /**
+     * Stops decompressing. The decompression thread closes the source.
+     */
+    @Override
+    public void close() {
+        m_closed = true;
+        m_queue.clear();
+        m_thread.interrupt();
+    }
+}
@@ -47,16 +47,27 @@
  */
 package org.cmdm;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import org.knime.base.node.util.BufferedFileReader;
 import org.cmdm.BBB_predictorNodeSettings.Property;
@@ -73,6 +84,7 @@ import org.knime.chem.types.SdfCellFactory;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.DataType;
 import org.knime.core.data.RowKey;
@@ -107,6 +119,9 @@ public class BBB_predictorDefaultSDFReader {
     /** Name of structure name column. */
     public static final String MOLECULE_NAME_COLUMN = "Molecule name";
 
+    /** The encoding of SD files that are decoded by this class itself. */
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
 //    private final SDFReaderSettings m_settings;
     private final BBB_predictorNodeSettings m_settings;
     private String m_warningMessage;
@@ -169,38 +184,50 @@ public class BBB_predictorDefaultSDFReader {
         }
     }
 
-    private Collection<Property> determineProperties(
-            final ExecutionMonitor exec, final double max) throws IOException,
+    private Collection<Property> scanProperties(
+            final ExecutionMonitor exec) throws IOException,
             CanceledExecutionException {
         exec.setMessage("Determining properties");
         List<Property> props = new ArrayList<Property>();
 
         Map<String, Class<?>> propertyTypes =
                 new LinkedHashMap<String, Class<?>>();
-        long readBytes = 0;
-        int readMolecules = 0;
+        ReadProgress progress = new ReadProgress(exec);
         outer: for (URL url : m_settings.urls()) {
+            BBB_predictorSDFIndex index =
+                    m_settings.useRecordIndex() ? recordIndex(url) : null;
+            if (index != null) {
+                // read the records up to the limit directly, without
+                // searching for their boundaries
+                BBB_predictorMappedSDFFile mapped = index.openFile();
+                try {
+                    long n = Math.min(index.size(), progress.remaining());
+                    for (long i = 0; i < n; i++) {
+                        progress.next(index.end(i));
+                        analyze(index.decode(mapped, i), propertyTypes);
+                    }
+                    if (n < index.size()) {
+                        break outer;
+                    }
+                    progress.urlDone(mapped.size());
+                } finally {
+                    mapped.close();
+                }
+                continue;
+            }
+
             BufferedFileReader in = BufferedFileReader.createNewReader(url);
 
             SDFAnalyzer analyzer = new SDFAnalyzer(in);
 
             String mol;
             while ((mol = analyzer.nextMolecule()) != null) {
-                exec.checkCanceled();
-                exec.setProgress((readBytes + in.getNumberOfBytesRead()) / max);
-                try {
-                    analyzeAndUpdateProperties(mol, propertyTypes);
-                } catch (Exception ex) {
-                    LOGGER.error(ex.getMessage(), ex);
-                    continue;
-                }
-                readMolecules++;
-                if (m_settings.limitNumberOfMolecules()
-                        && (readMolecules >= m_settings.moleculeLimit())) {
+                if (progress.next(in.getNumberOfBytesRead()) < 0) {
                     break outer;
                 }
+                analyze(mol, propertyTypes);
             }
-            readBytes += in.getNumberOfBytesRead();
+            progress.urlDone(in.getNumberOfBytesRead());
         }
         for (Map.Entry<String, Class<?>> e : propertyTypes.entrySet()) {
             props.add(new Property(true, e.getKey(), (e.getValue() != null) ? e
@@ -209,13 +236,23 @@ public class BBB_predictorDefaultSDFReader {
         return props;
     }
 
+    private static void analyze(final String mol,
+            final Map<String, Class<?>> propertyTypes) {
+        try {
+            analyzeAndUpdateProperties(mol, propertyTypes);
+        } catch (Exception ex) {
+            LOGGER.error(ex.getMessage(), ex);
+        }
+    }
+
     /**
      * Creates the output spec for good molecules based on the settings from the
      * dialog.
      *
+     * @param properties the properties that should be extracted
      * @return the output spec
      */
-    private DataTableSpec createSuccessfulSpec(
+    DataTableSpec createSuccessfulSpec(
             final Collection<Property> properties) {
         List<DataColumnSpec> colSpecs = new ArrayList<DataColumnSpec>();
         Set<String> empty = Collections.emptySet();
@@ -272,7 +309,7 @@ public class BBB_predictorDefaultSDFReader {
      *
      * @return the output spec
      */
-    private DataTableSpec createBrokenSpec() {
+    DataTableSpec createBrokenSpec() {
         List<DataColumnSpec> colSpecs = new ArrayList<DataColumnSpec>();
 
         colSpecs.add(new DataColumnSpecCreator("SDF string", StringCell.TYPE)
@@ -289,6 +326,72 @@ public class BBB_predictorDefaultSDFReader {
                 .size()]));
     }
 
+    /**
+     * A record read by
+     * {@link BBB_predictorDefaultSDFReader#read(ExecutionMonitor, RecordHandler)}.
+     * Records from memory-mapped files are only decoded when their text is
+     * requested, so that this can happen on the thread processing the record.
+     */
+    public interface Record {
+        /**
+         * Returns the record's text.
+         *
+         * @return the complete SDF record
+         */
+        String text();
+    }
+
+    /** A record that has already been read into a string. */
+    private static final class TextRecord implements Record {
+        private final String m_text;
+
+        TextRecord(final String text) {
+            m_text = text;
+        }
+
+        @Override
+        public String text() {
+            return m_text;
+        }
+    }
+
+    /** A record given by its byte range in a memory-mapped file. */
+    private static final class MappedRecord implements Record {
+        private final BBB_predictorMappedSDFFile m_file;
+
+        private final long m_start;
+
+        private final long m_end;
+
+        MappedRecord(final BBB_predictorMappedSDFFile file, final long start,
+                final long end) {
+            m_file = file;
+            m_start = start;
+            m_end = end;
+        }
+
+        @Override
+        public String text() {
+            return m_file.decode(m_start, m_end);
+        }
+    }
+
+    /**
+     * Callback that receives every record read by
+     * {@link BBB_predictorDefaultSDFReader#read(ExecutionMonitor, RecordHandler)}.
+     */
+    public interface RecordHandler {
+        /**
+         * Called once for each record in the input files, in file order.
+         *
+         * @param index the record's index, counted over all URLs
+         * @param record the record, whose text may only be decoded on demand
+         * @param source the URL the record has been read from
+         * @throws Exception if the record cannot be handled
+         */
+        void handle(long index, Record record, URL source) throws Exception;
+    }
+
     /**
      * Performs a node's execute method. Reads the data and returns the data as
      * described in the {@link #configure()} method.
@@ -299,179 +402,636 @@ public class BBB_predictorDefaultSDFReader {
      */
     public BufferedDataTable[] execute(final ExecutionContext exec)
             throws Exception {
-        double max = 0;
-        if (m_settings.limitNumberOfMolecules()) {
-            max = m_settings.moleculeLimit();
-        } else {
-            int readFiles = 0;
-            for (URL url : m_settings.urls()) {
-                readFiles++;
-                BufferedFileReader in = BufferedFileReader.createNewReader(url);
-                long size = in.getFileSize();
-                if (size > 0) {
-                    max += size;
-                } else {
-                    // estimate
-                    max += (max / readFiles);
-                }
-                in.close();
-            }
-        }
-
-        Collection<Property> properties;
+        final Collection<Property> properties;
         ExecutionMonitor subExec;
         if (m_settings.extractAllProperties()) {
-            properties = determineProperties(exec.createSubProgress(0.5), max);
+            properties = determineProperties(exec.createSubProgress(0.5));
             subExec = exec.createSubProgress(0.5);
         } else {
             properties = m_settings.properties();
             subExec = exec;
         }
-        DataTableSpec outSpec = createSuccessfulSpec(properties);
+        final DataTableSpec outSpec = createSuccessfulSpec(properties);
 
-        BufferedDataContainer cont =
+        final BufferedDataContainer cont =
                 createSuccessfulOutputContainer(exec, outSpec);
-        BufferedDataContainer brokenCont =
+        final BufferedDataContainer brokenCont =
                 exec.createDataContainer(createBrokenSpec(), false, 0);
 
-        long readMolecules = -1;
-        long readBytes = 0;
+        read(subExec, new RecordHandler() {
+            @Override
+            public void handle(final long index, final Record record,
+                    final URL source) {
+                String mol = record.text();
+                SDFBlock sdf;
+                try {
+                    sdf = SDFAnalyzer.analyzeSDF(mol);
+                } catch (Exception ex) {
+                    brokenCont.addRowToTable(createBrokenRow(index, mol, ex,
+                            source));
+                    return;
+                }
+
+                DataCell[] cells = createCells(mol, sdf, source, properties,
+                        outSpec.getNumColumns());
+
+                // encapsulate the row key string in a new string to truncate
+                // the data (see bug #1737)
+                RowKey key =
+                        m_settings.useRowID() ? new RowKey(new String(sdf
+                                .getMolfileBlock().getTitle())) : RowKey
+                                .createRowKey(index);
+
+                cont.addRowToTable(new DefaultRow(key, cells));
+            }
+        });
+
+        cont.close();
+        brokenCont.close();
+        BufferedDataTable brokenTbl = brokenCont.getTable();
+        if (brokenTbl.size() > 0) {
+            setWarningMessage("Failed to parse " + brokenTbl.size()
+                    + " record(s)");
+        }
+        return new BufferedDataTable[]{cont.getTable(), brokenCont.getTable()};
+    }
+
+    /**
+     * Returns the properties that should be extracted into columns. If all
+     * properties should be extracted, all input files are scanned first.
+     *
+     * @param exec monitor for progress report and cancellation
+     * @return a collection of properties
+     * @throws IOException if an I/O error occurs
+     * @throws CanceledExecutionException if execution has been canceled
+     */
+    public Collection<Property> determineProperties(final ExecutionMonitor exec)
+            throws IOException, CanceledExecutionException {
+        if (m_settings.extractAllProperties()) {
+            return scanProperties(exec);
+        } else {
+            return m_settings.properties();
+        }
+    }
+
+    /**
+     * Returns the number of records that will be read, if it is known from the
+     * molecule limit or the record indexes.
+     *
+     * @return the number of records or -1 if it is not known
+     */
+    private long expectedRecordCount() {
+        long indexed = indexedRecordCount();
+        if (m_settings.limitNumberOfMolecules()) {
+            long limit = m_settings.moleculeLimit();
+            return (indexed >= 0) ? Math.min(limit, indexed) : limit;
+        }
+        return indexed;
+    }
+
+    private double totalSize() throws IOException {
+        double max = 0;
         int readFiles = 0;
-        outer: for (URL url : m_settings.urls()) {
-            BufferedFileReader in = BufferedFileReader.createNewReader(url);
+        for (URL url : m_settings.urls()) {
             readFiles++;
+            BufferedFileReader in = BufferedFileReader.createNewReader(url);
+            long size = in.getFileSize();
+            if (size > 0) {
+                max += size;
+            } else {
+                // estimate
+                max += (max / readFiles);
+            }
+            in.close();
+        }
+        return max;
+    }
+
+    /**
+     * Counts the records handed over by
+     * {@link BBB_predictorDefaultSDFReader#read(ExecutionMonitor, RecordHandler)},
+     * reports the progress and enforces the molecule limit.
+     */
+    private final class ReadProgress {
+        private final ExecutionMonitor m_exec;
+
+        /** The number of records to read, -1 if it is not known. */
+        private final long m_records;
+
+        /** The total size of the URLs, only if the records are not known. */
+        private final double m_size;
+
+        private long m_readMolecules = -1;
+
+        private long m_readBytes;
+
+        ReadProgress(final ExecutionMonitor exec) throws IOException {
+            m_exec = exec;
+            m_records = expectedRecordCount();
+            m_size = (m_records < 0) ? totalSize() : 0;
+        }
+
+        /**
+         * Returns how many more records may be read before the limit is
+         * reached.
+         *
+         * @return the number of records, {@link Long#MAX_VALUE} if there is
+         *         no limit
+         */
+        long remaining() {
+            if (!m_settings.limitNumberOfMolecules()) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(0,
+                    m_settings.moleculeLimit() - (m_readMolecules + 1));
+        }
+
+        /**
+         * Announces the next record.
+         *
+         * @param bytesInUrl the number of bytes read so far from the current
+         *            URL
+         * @return the record's index, or -1 if the limit has been reached
+         */
+        long next(final long bytesInUrl) throws CanceledExecutionException {
+            m_exec.checkCanceled();
+            m_readMolecules++;
+            if (m_settings.limitNumberOfMolecules()
+                    && (m_readMolecules >= m_settings.moleculeLimit())) {
+                return -1;
+            }
+
+            if ((m_records > 0) || (m_size > 0)) {
+                double p;
+                if (m_records > 0) {
+                    p = m_readMolecules / (double)m_records;
+                } else {
+                    p = (m_readBytes + bytesInUrl) / m_size;
+                }
+                m_exec.setProgress(p, "Read " + m_readMolecules
+                        + " molecules");
+            } else {
+                m_exec.setMessage("Read " + m_readMolecules + " molecules");
+            }
+            return m_readMolecules;
+        }
+
+        /**
+         * Marks the end of the current URL.
+         *
+         * @param bytes the number of bytes read from it
+         */
+        void urlDone(final long bytes) {
+            m_readBytes += bytes;
+        }
+    }
+
+    /**
+     * Returns the total number of records in the configured URLs if all of
+     * them are local files with an up-to-date record index.
+     *
+     * @return the number of records or -1 if it is not known
+     */
+    private long indexedRecordCount() {
+        if (!m_settings.useRecordIndex()) {
+            return -1;
+        }
+        long count = 0;
+        for (URL url : m_settings.urls()) {
+            BBB_predictorSDFIndex index = recordIndex(url);
+            if (index == null) {
+                return -1;
+            }
+            count += index.size();
+        }
+        return count;
+    }
+
+    /**
+     * Reads all records from the configured URLs and passes each of them to
+     * the given handler, honouring the molecule limit. Records are handed over
+     * as soon as they have been read, no intermediate table is created. Local
+     * files are memory-mapped: only the record boundaries are located here,
+     * the records are decoded by whoever asks for their text. Gzip files and
+     * the SD files in zip archives are decompressed on separate threads.
+     *
+     * @param exec monitor for progress report and cancellation
+     * @param handler the handler that receives the records
+     * @throws Exception if reading fails or the handler throws an exception
+     */
+    public void read(final ExecutionMonitor exec, final RecordHandler handler)
+            throws Exception {
+        ReadProgress progress = new ReadProgress(exec);
+        for (URL url : m_settings.urls()) {
+            String path = url.getPath().toLowerCase();
+            File file = mappableFile(url);
+            boolean more;
+            if (path.endsWith(".zip")) {
+                more = readZip(url, progress, handler);
+            } else if (path.endsWith(".gz")) {
+                more = readGzip(url, progress, handler);
+            } else if (file != null) {
+                more = readMapped(file, url, progress, handler);
+            } else {
+                more = readSequentially(url, progress, handler);
+            }
+            if (!more) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the record index of a URL.
+     *
+     * @param url a URL
+     * @return the up-to-date index or <code>null</code> if the URL is not a
+     *         local, uncompressed file or has not been indexed
+     */
+    static BBB_predictorSDFIndex recordIndex(final URL url) {
+        File file = mappableFile(url);
+        return (file != null) ? BBB_predictorSDFIndex.load(file) : null;
+    }
+
+    /**
+     * Returns the local file behind a URL if it can be memory-mapped.
+     *
+     * @return the file or <code>null</code> if the URL must be streamed
+     */
+    private static File mappableFile(final URL url) {
+        File file = FileUtil.getFileFromURL(url);
+        if ((file == null) || !file.isFile()
+                || file.getName().toLowerCase().endsWith(".gz")
+                || file.getName().toLowerCase().endsWith(".zip")) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * @return <code>false</code> if the molecule limit has been reached
+     */
+    private boolean readSequentially(final URL url,
+            final ReadProgress progress, final RecordHandler handler)
+            throws Exception {
+        BufferedFileReader in = BufferedFileReader.createNewReader(url);
+        try {
             SDFAnalyzer analyzer = new SDFAnalyzer(in);
 
             String mol;
             while ((mol = analyzer.nextMolecule()) != null) {
-                subExec.checkCanceled();
-                readMolecules++;
-                if (m_settings.limitNumberOfMolecules()
-                        && (readMolecules >= m_settings.moleculeLimit())) {
-                    in.close();
-                    break outer;
+                long index = progress.next(in.getNumberOfBytesRead());
+                if (index < 0) {
+                    return false;
                 }
+                handler.handle(index, new TextRecord(mol), url);
+            }
+            progress.urlDone(in.getNumberOfBytesRead());
+            return true;
+        } finally {
+            in.close();
+        }
+    }
 
-                if (max > 0) {
-                    double p;
-                    if (m_settings.limitNumberOfMolecules()) {
-                        p = readMolecules / max;
-                    } else {
-                        p = (readBytes + in.getNumberOfBytesRead()) / max;
-                    }
-                    subExec.setProgress(p, "Read " + readMolecules
-                            + " molecules");
-                } else {
-                    subExec.setMessage("Read " + readMolecules + " molecules");
-                }
+    /**
+     * Hands over the records of a decompressed stream.
+     *
+     * @param compressed the compressed input, used for progress reporting
+     * @param compressedOffset the number of compressed bytes of the URL
+     *            consumed before this stream started
+     * @return <code>false</code> if the molecule limit has been reached
+     */
+    private boolean readDecompressed(final InputStream in,
+            final BBB_predictorDecompressor.CountingInputStream compressed,
+            final long compressedOffset, final URL source,
+            final ReadProgress progress, final RecordHandler handler)
+            throws Exception {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, CHARSET), 1 << 16);
+        SDFAnalyzer analyzer = new SDFAnalyzer(reader);
 
-                SDFBlock sdf;
-                try {
-                    sdf = SDFAnalyzer.analyzeSDF(mol);
-                } catch (Exception ex) {
-                    String errMessage = ex.getMessage();
-                    if (errMessage == null) {
-                        errMessage = "<no error message available>";
-                    }
+        String mol;
+        while ((mol = analyzer.nextMolecule()) != null) {
+            long n = progress.next(compressedOffset
+                    + ((compressed != null) ? compressed.count() : 0));
+            if (n < 0) {
+                return false;
+            }
+            handler.handle(n, new TextRecord(mol), source);
+        }
+        return true;
+    }
 
-                    LOGGER.warn(errMessage, ex);
-                    DataCell[] cells =
-                            new DataCell[m_settings.sourceLocationColumn() ? 3
-                                    : 2];
-                    cells[0] = new StringCell(mol);
-                    cells[1] = new StringCell(errMessage);
-                    if (m_settings.sourceLocationColumn()) {
-                        cells[2] =
-                                new StringCell(m_settings.urls()
-                                        .get(readFiles - 1).toString());
-                    }
+    /**
+     * @return <code>false</code> if the molecule limit has been reached
+     */
+    private boolean readGzip(final URL url, final ReadProgress progress,
+            final RecordHandler handler) throws Exception {
+        BBB_predictorDecompressor.CountingInputStream raw =
+                new BBB_predictorDecompressor.CountingInputStream(
+                        FileUtil.openStreamWithTimeout(url));
+        BBB_predictorDecompressor in;
+        try {
+            in = new BBB_predictorDecompressor(
+                    new GZIPInputStream(raw, 1 << 16), url.getPath());
+        } catch (IOException ex) {
+            raw.close();
+            throw ex;
+        }
+        try {
+            if (!readDecompressed(in, raw, 0, url, progress, handler)) {
+                return false;
+            }
+            progress.urlDone(raw.count());
+            return true;
+        } finally {
+            in.close();
+        }
+    }
 
-                    brokenCont.addRowToTable(new DefaultRow(RowKey
-                            .createRowKey(readMolecules), cells));
-                    continue;
-                }
+    /**
+     * Checks whether a zip entry is read as an SD file.
+     */
+    private static boolean isSDFEntry(final ZipEntry entry) {
+        String name = entry.getName().toLowerCase();
+        return !entry.isDirectory()
+                && (name.endsWith(".sdf") || name.endsWith(".sd")
+                        || name.endsWith(".mol"));
+    }
+
+    private static URL entryURL(final URL zip, final ZipEntry entry)
+            throws IOException {
+        return new URL("jar:" + zip + "!/" + entry.getName());
+    }
 
-                DataCell[] cells = new DataCell[outSpec.getNumColumns()];
+    /**
+     * Reads the SD files in a zip archive in the order of the archive.
+     * Entries of local archives are decompressed concurrently, up to as many
+     * entries ahead as there are scoring threads; remote archives can only be
+     * decompressed entry by entry.
+     *
+     * @return <code>false</code> if the molecule limit has been reached
+     */
+    private boolean readZip(final URL url, final ReadProgress progress,
+            final RecordHandler handler) throws Exception {
+        File file = FileUtil.getFileFromURL(url);
+        if ((file == null) || !file.isFile()) {
+            return readZipStream(url, progress, handler);
+        }
 
-                int k = 0;
-                if (m_settings.extractSDF()) {
-                    cells[k++] = SdfCellFactory.createAdapterCell(mol);
+        ZipFile zip = new ZipFile(file);
+        ArrayDeque<BBB_predictorDecompressor> window =
+                new ArrayDeque<BBB_predictorDecompressor>();
+        try {
+            List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            for (Enumeration<? extends ZipEntry> e = zip.entries();
+                    e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                if (isSDFEntry(entry)) {
+                    entries.add(entry);
                 }
+            }
 
-                if (m_settings.extractMol()) {
-                    cells[k++] = MolCellFactory.createAdapterCell(sdf.getMolfileBlock().toString());
+            int ahead = Math.max(1, m_settings.threads());
+            int started = 0;
+            long compressedBytes = 0;
+            for (ZipEntry entry : entries) {
+                while ((started < entries.size())
+                        && (window.size() < ahead)) {
+                    ZipEntry next = entries.get(started++);
+                    window.add(new BBB_predictorDecompressor(
+                            zip.getInputStream(next), next.getName()));
                 }
-                if (m_settings.extractCtab()) {
-                    cells[k++] =
-                            CtabCellFactory.create(sdf.getMolfileBlock()
-                                    .getCtabBlock().toString());
+                BBB_predictorDecompressor in = window.poll();
+                try {
+                    if (!readDecompressed(in, null, compressedBytes,
+                            entryURL(url, entry), progress, handler)) {
+                        return false;
+                    }
+                } finally {
+                    in.close();
                 }
+                compressedBytes += Math.max(0, entry.getCompressedSize());
+            }
+            progress.urlDone(file.length());
+            return true;
+        } finally {
+            for (BBB_predictorDecompressor in : window) {
+                in.close();
+            }
+            zip.close();
+        }
+    }
 
-                if (m_settings.extractName()) {
-                    cells[k++] =
-                            new StringCell(sdf.getMolfileBlock().getTitle());
+    /**
+     * @return <code>false</code> if the molecule limit has been reached
+     */
+    private boolean readZipStream(final URL url, final ReadProgress progress,
+            final RecordHandler handler) throws Exception {
+        BBB_predictorDecompressor.CountingInputStream raw =
+                new BBB_predictorDecompressor.CountingInputStream(
+                        FileUtil.openStreamWithTimeout(url));
+        final ZipInputStream zin = new ZipInputStream(raw);
+        try {
+            ZipEntry entry;
+            while ((entry = zin.getNextEntry()) != null) {
+                if (!isSDFEntry(entry)) {
+                    continue;
+                }
+                // the entry is read to its end before the next one is
+                // requested, the stream itself is closed below
+                BBB_predictorDecompressor in = new BBB_predictorDecompressor(
+                        new FilterInputStream(zin) {
+                            @Override
+                            public void close() {
+                                // keep the archive open
+                            }
+                        }, entry.getName());
+                try {
+                    if (!readDecompressed(in, raw, 0, entryURL(url, entry),
+                            progress, handler)) {
+                        return false;
+                    }
+                } finally {
+                    in.close();
                 }
+            }
+            progress.urlDone(raw.count());
+            return true;
+        } finally {
+            zin.close();
+        }
+    }
 
-                if (m_settings.extractCounts()) {
-                    cells[k++] =
-                            new IntCell(sdf.getMolfileBlock().getCtabBlock()
-                                    .getAtomCount());
-                    cells[k++] =
-                            new IntCell(sdf.getMolfileBlock().getCtabBlock()
-                                    .getBondCount());
+    /**
+     * @return <code>false</code> if the molecule limit has been reached
+     */
+    private boolean readMapped(final File file, final URL url,
+            final ReadProgress progress, final RecordHandler handler)
+            throws Exception {
+        // the mapping stays valid after the file has been closed, records
+        // that are still being processed can be decoded later
+        BBB_predictorMappedSDFFile mapped = BBB_predictorMappedSDFFile.open(file);
+        try {
+            BBB_predictorSDFIndex index = m_settings.useRecordIndex()
+                    ? BBB_predictorSDFIndex.load(file) : null;
+            if (index != null) {
+                // the boundaries are known, no need to scan the file, and
+                // the records after the limit are not even looked at
+                long count = Math.min(index.size(), progress.remaining());
+                for (long i = 0; i < count; i++) {
+                    long end = index.end(i);
+                    handler.handle(progress.next(end), new MappedRecord(
+                            mapped, index.offset(i), end), url);
+                }
+                if (count < index.size()) {
+                    return false;
                 }
+                progress.urlDone(mapped.size());
+                return true;
+            }
 
-                Map<String, DataItem> props = sdf.getProperties();
-
-                for (Property p : properties) {
-                    if (p.extract) {
-                        DataItem item = props.get(p.name);
-                        if (item == null) {
-                            cells[k++] = DataType.getMissingCell();
-                        } else {
-                            Object v = props.get(p.name).getValue();
-                            if (v == null) {
-                                cells[k++] = DataType.getMissingCell();
-                            } else if (p.type == Integer.class) {
-                                cells[k++] =
-                                        new IntCell(((Number)v).intValue());
-                            } else if (p.type == Double.class) {
-                                cells[k++] =
-                                        new DoubleCell(
-                                                ((Number)v).doubleValue());
-                            } else {
-                                cells[k++] =
-                                        new StringCell(props.get(p.name)
-                                                .getUnparsedValue());
-                            }
-                        }
+            BBB_predictorSDFIndex.Writer writer = m_settings.useRecordIndex()
+                    ? BBB_predictorSDFIndex.createWriter(file) : null;
+            boolean complete = false;
+            try {
+                long start = 0;
+                long end;
+                while ((end = mapped.recordEnd(start)) >= 0) {
+                    long n = progress.next(end);
+                    if (n < 0) {
+                        return false;
                     }
+                    if (writer != null) {
+                        writer.add(start, end);
+                    }
+                    handler.handle(n, new MappedRecord(mapped, start, end),
+                            url);
+                    start = end;
                 }
-
-                if (m_settings.sourceLocationColumn()) {
-                    cells[k++] = new StringCell(url.toString());
+                complete = true;
+            } finally {
+                if (writer != null) {
+                    if (complete) {
+                        writer.commit();
+                    } else {
+                        writer.abort();
+                    }
                 }
+            }
+            progress.urlDone(mapped.size());
+            return true;
+        } finally {
+            mapped.close();
+        }
+    }
 
-                // encapsulate the row key string in a new string to truncate
-                // the data (see bug #1737)
-                RowKey key =
-                        m_settings.useRowID() ? new RowKey(new String(sdf
-                                .getMolfileBlock().getTitle())) : RowKey
-                                .createRowKey(readMolecules);
+    /**
+     * Creates the cells for a successfully tokenised record, as described by
+     * {@link #createSuccessfulSpec(Collection)}. The returned array may be
+     * larger than the number of columns in this spec, additional cells are
+     * left empty for the caller.
+     *
+     * @param mol the complete SDF record
+     * @param sdf the tokenised record
+     * @param source the URL the record has been read from
+     * @param properties the properties that should be extracted
+     * @param numCells the length of the returned array
+     * @return an array of cells
+     */
+    DataCell[] createCells(final String mol, final SDFBlock sdf,
+            final URL source, final Collection<Property> properties,
+            final int numCells) {
+        DataCell[] cells = new DataCell[numCells];
 
-                cont.addRowToTable(new DefaultRow(key, cells));
+        int k = 0;
+        if (m_settings.extractSDF()) {
+            cells[k++] = SdfCellFactory.createAdapterCell(mol);
+        }
+
+        if (m_settings.extractMol()) {
+            cells[k++] = MolCellFactory.createAdapterCell(sdf.getMolfileBlock().toString());
+        }
+        if (m_settings.extractCtab()) {
+            cells[k++] =
+                    CtabCellFactory.create(sdf.getMolfileBlock()
+                            .getCtabBlock().toString());
+        }
+
+        if (m_settings.extractName()) {
+            cells[k++] =
+                    new StringCell(sdf.getMolfileBlock().getTitle());
+        }
+
+        if (m_settings.extractCounts()) {
+            cells[k++] =
+                    new IntCell(sdf.getMolfileBlock().getCtabBlock()
+                            .getAtomCount());
+            cells[k++] =
+                    new IntCell(sdf.getMolfileBlock().getCtabBlock()
+                            .getBondCount());
+        }
+
+        Map<String, DataItem> props = sdf.getProperties();
+
+        for (Property p : properties) {
+            if (p.extract) {
+                DataItem item = props.get(p.name);
+                if (item == null) {
+                    cells[k++] = DataType.getMissingCell();
+                } else {
+                    Object v = props.get(p.name).getValue();
+                    if (v == null) {
+                        cells[k++] = DataType.getMissingCell();
+                    } else if (p.type == Integer.class) {
+                        cells[k++] =
+                                new IntCell(((Number)v).intValue());
+                    } else if (p.type == Double.class) {
+                        cells[k++] =
+                                new DoubleCell(
+                                        ((Number)v).doubleValue());
+                    } else {
+                        cells[k++] =
+                                new StringCell(props.get(p.name)
+                                        .getUnparsedValue());
+                    }
+                }
             }
-            readBytes += in.getNumberOfBytesRead();
         }
 
-        cont.close();
-        brokenCont.close();
-        BufferedDataTable brokenTbl = brokenCont.getTable();
-        if (brokenTbl.size() > 0) {
-            setWarningMessage("Failed to parse " + brokenTbl.size()
-                    + " record(s)");
+        if (m_settings.sourceLocationColumn()) {
+            cells[k++] = new StringCell(source.toString());
         }
-        return new BufferedDataTable[]{cont.getTable(), brokenCont.getTable()};
+        return cells;
+    }
+
+    /**
+     * Creates a row for the table of unparseable records, as described by
+     * {@link #createBrokenSpec()}.
+     *
+     * @param index the record's index, used for the row key
+     * @param mol the complete SDF record
+     * @param ex the exception that occurred while parsing the record
+     * @param source the URL the record has been read from
+     * @return a new row
+     */
+    DataRow createBrokenRow(final long index, final String mol,
+            final Exception ex, final URL source) {
+        String errMessage = ex.getMessage();
+        if (errMessage == null) {
+            errMessage = "<no error message available>";
+        }
+
+        LOGGER.warn(errMessage, ex);
+        DataCell[] cells =
+                new DataCell[m_settings.sourceLocationColumn() ? 3 : 2];
+        cells[0] = new StringCell(mol);
+        cells[1] = new StringCell(errMessage);
+        if (m_settings.sourceLocationColumn()) {
+            cells[2] = new StringCell(source.toString());
+        }
+
+        return new DefaultRow(RowKey.createRowKey(index), cells);
     }
 
     /**
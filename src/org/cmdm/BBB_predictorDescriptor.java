@@ -0,0 +1,32 @@
+package org.cmdm;
+
+/**
+ * The molecular descriptors the predictions are based on.
+ *
+ * @author Yi Hsiao
+ */
+enum BBB_predictorDescriptor {
+    /** Ghose-Crippen LogP. */
+    ALOGP("ALogP"),
+    /** Topological polar surface area. */
+    TPSA("TPSA"),
+    /** Lowest eigenvalue of the mass weighted Burden matrix. */
+    BCUT("BCUT"),
+    /** Mannhold LogP, based on the number of carbon and hetero atoms. */
+    MANNHOLD_LOGP("MannholdLogP");
+
+    private final String m_label;
+
+    private BBB_predictorDescriptor(final String label) {
+        m_label = label;
+    }
+
+    /**
+     * Returns a human readable name.
+     *
+     * @return the name
+     */
+    String label() {
+        return m_label;
+    }
+}
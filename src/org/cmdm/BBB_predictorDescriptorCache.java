@@ -0,0 +1,253 @@
+package org.cmdm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Cache for descriptor values that is shared by all node instances in the
+ * workbench. Entries are keyed by a canonical hash of the molecule's
+ * structure, so identical molecules read from different files or under
+ * different names are only computed once.
+ *
+ * <p>
+ * The cache has two tiers: a size limited LRU map in memory and a
+ * {@link BBB_predictorMappedDescriptorStore memory-mapped file} in the
+ * plug-in's state location that survives restarts. The limits and the
+ * location can be changed with the system properties
+ * <code>org.cmdm.descriptorCache.memoryEntries</code>,
+ * <code>org.cmdm.descriptorCache.diskEntries</code> and
+ * <code>org.cmdm.descriptorCache.dir</code>; a disk limit of 0 disables the
+ * disk tier. All methods are thread safe.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorDescriptorCache implements
+        BBB_predictorDescriptorStore {
+    private static final NodeLogger LOGGER = NodeLogger
+            .getLogger(BBB_predictorDescriptorCache.class);
+
+    private static final int MEMORY_ENTRIES = Integer.getInteger(
+            "org.cmdm.descriptorCache.memoryEntries", 100000);
+
+    private static final int DISK_ENTRIES = Integer.getInteger(
+            "org.cmdm.descriptorCache.diskEntries", 1 << 20);
+
+    private static final String CACHE_FILE = "descriptors.cache";
+
+    private static BBB_predictorDescriptorCache instance;
+
+    private static final class CachedValues {
+        final int atomCount;
+
+        final int bondCount;
+
+        final int mask;
+
+        final double[] values;
+
+        CachedValues(final int atomCount, final int bondCount, final int mask,
+                final double[] values) {
+            this.atomCount = atomCount;
+            this.bondCount = bondCount;
+            this.mask = mask;
+            this.values = values;
+        }
+    }
+
+    private final Map<Long, CachedValues> m_memory;
+
+    private final BBB_predictorMappedDescriptorStore m_disk;
+
+    private final AtomicLong m_memoryHits = new AtomicLong();
+
+    private final AtomicLong m_diskHits = new AtomicLong();
+
+    private final AtomicLong m_misses = new AtomicLong();
+
+    private BBB_predictorDescriptorCache(final int memoryEntries,
+            final BBB_predictorMappedDescriptorStore disk) {
+        m_memory = new LinkedHashMap<Long, CachedValues>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<Long, CachedValues> eldest) {
+                return size() > memoryEntries;
+            }
+        };
+        m_disk = disk;
+    }
+
+    /**
+     * Returns the shared cache, opening it on first use.
+     *
+     * @return the cache
+     */
+    static synchronized BBB_predictorDescriptorCache getInstance() {
+        if (instance == null) {
+            instance = new BBB_predictorDescriptorCache(MEMORY_ENTRIES,
+                    openDiskTier());
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the shared cache, writing the disk tier back to the file. The
+     * cache is reopened on the next call to {@link #getInstance()}.
+     */
+    static synchronized void shutdown() {
+        if ((instance != null) && (instance.m_disk != null)) {
+            try {
+                instance.m_disk.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Could not write descriptor cache: "
+                        + ex.getMessage(), ex);
+            }
+        }
+        instance = null;
+    }
+
+    private static BBB_predictorMappedDescriptorStore openDiskTier() {
+        if (DISK_ENTRIES <= 0) {
+            return null;
+        }
+        File file = new File(cacheDirectory(), CACHE_FILE);
+        try {
+            BBB_predictorMappedDescriptorStore store =
+                    BBB_predictorMappedDescriptorStore.open(file, DISK_ENTRIES);
+            if (store == null) {
+                LOGGER.info("Descriptor cache file '" + file
+                        + "' is in use, caching in memory only");
+            }
+            return store;
+        } catch (IOException ex) {
+            LOGGER.warn("Could not open descriptor cache file '" + file
+                    + "', caching in memory only: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the directory in which persistent caches of this plug-in are
+     * stored.
+     *
+     * @return a directory, which may not exist yet
+     */
+    static File cacheDirectory() {
+        String dir = System.getProperty("org.cmdm.descriptorCache.dir");
+        if (dir != null) {
+            return new File(dir);
+        }
+        BBB_predictorNodePlugin plugin = BBB_predictorNodePlugin.getDefault();
+        if (plugin != null) {
+            return new File(plugin.getStateLocation().toFile(), "cache");
+        }
+        return new File(System.getProperty("java.io.tmpdir"), "bbb_predictor");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int get(final long key, final int atomCount, final int bondCount,
+            final double[] values) {
+        CachedValues e;
+        synchronized (m_memory) {
+            e = m_memory.get(key);
+        }
+        if ((e != null) && (e.atomCount == atomCount)
+                && (e.bondCount == bondCount)) {
+            m_memoryHits.incrementAndGet();
+            copy(e.mask, e.values, values);
+            return e.mask;
+        }
+        if (m_disk != null) {
+            int mask = m_disk.get(key, atomCount, bondCount, values);
+            if (mask != 0) {
+                m_diskHits.incrementAndGet();
+                putInMemory(key, atomCount, bondCount, mask, values);
+                return mask;
+            }
+        }
+        m_misses.incrementAndGet();
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(final long key, final int atomCount, final int bondCount,
+            final int mask, final double[] values) {
+        putInMemory(key, atomCount, bondCount, mask, values);
+        if (m_disk != null) {
+            m_disk.put(key, atomCount, bondCount, mask, values);
+        }
+    }
+
+    private void putInMemory(final long key, final int atomCount,
+            final int bondCount, final int mask, final double[] values) {
+        synchronized (m_memory) {
+            CachedValues old = m_memory.get(key);
+            double[] copy = new double[values.length];
+            int merged = mask;
+            if ((old != null) && (old.atomCount == atomCount)
+                    && (old.bondCount == bondCount)) {
+                copy(old.mask, old.values, copy);
+                merged |= old.mask;
+            }
+            copy(mask, values, copy);
+            m_memory.put(key,
+                    new CachedValues(atomCount, bondCount, merged, copy));
+        }
+    }
+
+    private static void copy(final int mask, final double[] from,
+            final double[] to) {
+        for (int i = 0; i < to.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                to[i] = from[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups answered from memory.
+     *
+     * @return the number of memory hits
+     */
+    long memoryHits() {
+        return m_memoryHits.get();
+    }
+
+    /**
+     * Returns the number of lookups answered from the disk tier.
+     *
+     * @return the number of disk hits
+     */
+    long diskHits() {
+        return m_diskHits.get();
+    }
+
+    /**
+     * Returns the number of lookups for unknown structures.
+     *
+     * @return the number of misses
+     */
+    long misses() {
+        return m_misses.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "memory hits: " + memoryHits() + ", disk hits: " + diskHits()
+                + ", misses: " + misses()
+                + (m_disk == null ? " (memory only)" : "");
+    }
+}
@@ -0,0 +1,447 @@
+package org.cmdm;
+
+import org.cmdm.BBB_predictorFlightRecorder.Type;
+import org.knime.core.node.NodeLogger;
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.hash.BasicAtomEncoder;
+import org.openscience.cdk.hash.HashGeneratorMaker;
+import org.openscience.cdk.hash.MoleculeHashGenerator;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.qsar.DescriptorValue;
+import org.openscience.cdk.qsar.IMolecularDescriptor;
+import org.openscience.cdk.qsar.descriptors.molecular.ALOGPDescriptor;
+import org.openscience.cdk.qsar.descriptors.molecular.BCUTDescriptor;
+import org.openscience.cdk.qsar.descriptors.molecular.MannholdLogPDescriptor;
+import org.openscience.cdk.qsar.descriptors.molecular.TPSADescriptor;
+import org.openscience.cdk.qsar.result.DoubleArrayResult;
+import org.openscience.cdk.qsar.result.DoubleResult;
+import org.openscience.cdk.qsar.result.IDescriptorResult;
+import org.openscience.cdk.tools.CDKHydrogenAdder;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+
+/**
+ * Computes the descriptors needed for the predictions. The CDK descriptor
+ * instances are created once and reused for all molecules, so their atom type
+ * tables and parameters are initialised only once. An engine is not thread
+ * safe, each worker thread uses its own engine.
+ *
+ * <p>
+ * Descriptors are evaluated lazily: after a molecule has been bound with
+ * {@link #bind(IAtomContainer)}, a descriptor is computed the first time it is
+ * requested and then remembered until the next molecule is bound. Values can
+ * also be taken from a {@link BBB_predictorDescriptorStore}, keyed by a
+ * canonical hash of the molecule's structure. The engine counts how many
+ * molecules it has seen and how often each descriptor was actually computed,
+ * and records the time of each computation in the execution's
+ * {@link BBB_predictorMetrics}.
+ *
+ * <p>
+ * A record parsed by {@link BBB_predictorCtabParser} can instead be bound
+ * with {@link #bind(BBB_predictorCtabParser, String)}, which only fills the
+ * engine's {@link BBB_predictorMoleculeGraph}. TPSA and Mannhold LogP are then
+ * computed from the graph, and a CDK molecule is only created from the
+ * parser if another descriptor is requested or TPSA has to be left to CDK.
+ *
+ * <p>
+ * ALogP, TPSA and Mannhold LogP are computed on the molecule as it has been
+ * read, as CDK's descriptors always were; none of them perceives atom types
+ * or aromaticity, and the bound molecule is never modified. Only BCUT depends
+ * on atom types, hydrogens and aromaticity, which CDK's descriptor perceives
+ * on a copy of its own. For {@link BBB_predictorBCUT} the engine caches such
+ * a copy, the BCUT input, which is created once per molecule the first time
+ * BCUT is requested and used by nothing else. BCUT and TPSA are computed by
+ * {@link BBB_predictorBCUT} and {@link BBB_predictorTPSA}, which leave the
+ * molecules they do not handle to CDK's descriptors. Mannhold LogP of
+ * records bound from the parser is computed from the carbon and hetero atom
+ * counts of its scan, that of molecules by CDK's descriptor.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorDescriptorEngine {
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(BBB_predictorDescriptorEngine.class);
+
+    /** Index of ALogP in the ALOGP descriptor's result (ALogP, ALogp2, AMR). */
+    private static final int ALOGP_INDEX = 0;
+
+    /** Index of the lowest mass weighted eigenvalue in the BCUT result. */
+    private static final int BCUT_INDEX = 0;
+
+    private static final BBB_predictorDescriptor[] DESCRIPTORS =
+            BBB_predictorDescriptor.values();
+
+    private static final Aromaticity AROMATICITY = Aromaticity.cdkLegacy();
+
+    private final IMolecularDescriptor m_alogp = new ALOGPDescriptor();
+
+    private final IMolecularDescriptor m_tpsa = new TPSADescriptor();
+
+    private final BBB_predictorTPSA m_fastTPSA = new BBB_predictorTPSA();
+
+    private final IMolecularDescriptor m_bcut = new BCUTDescriptor();
+
+    private final BBB_predictorBCUT m_fastBCUT = new BBB_predictorBCUT();
+
+    private final IMolecularDescriptor m_mannholdLogP =
+            new MannholdLogPDescriptor();
+
+    /**
+     * Perturbed, so that symmetric structures which the plain hash cannot
+     * tell apart (e.g. cubane and cuneane) get different keys.
+     */
+    private final MoleculeHashGenerator m_hashGenerator = new HashGeneratorMaker()
+            .depth(16).elemental().isotopic().charged()
+            .encode(BasicAtomEncoder.BOND_ORDER_SUM).perturbed().molecular();
+
+    private final BBB_predictorMoleculeGraph m_graph =
+            new BBB_predictorMoleculeGraph();
+
+    /**
+     * The bound molecule, for records bound from the parser
+     * <code>null</code> until it is needed.
+     */
+    private IAtomContainer m_molecule;
+
+    /** The parser of the bound record, <code>null</code> for molecules. */
+    private BBB_predictorCtabParser m_parser;
+
+    private String m_title;
+
+    /** Whether the graph has been filled or loaded for the bound molecule. */
+    private boolean m_graphLoaded;
+
+    /** Whether the graph describes the bound molecule. */
+    private boolean m_hasGraph;
+
+    /** Whether the BCUT input has been created for the bound molecule. */
+    private boolean m_hasBCUTInput;
+
+    /**
+     * The bound molecule's copy with atom types, implicit hydrogens and
+     * aromaticity as CDK's BCUT descriptor perceives them, <code>null</code>
+     * if they could not be perceived. Only BCUT uses it.
+     */
+    private IAtomContainer m_bcutInput;
+
+    private CDKHydrogenAdder m_hydrogenAdder;
+
+    private long m_structureKey;
+
+    private boolean m_hasStructureKey;
+
+    private final double[] m_values = new double[DESCRIPTORS.length];
+
+    private final double[] m_storedValues = new double[DESCRIPTORS.length];
+
+    private int m_computedMask;
+
+    private long m_moleculeCount;
+
+    private final long[] m_computations = new long[DESCRIPTORS.length];
+
+    private final BBB_predictorMetrics m_metrics;
+
+    /**
+     * Creates a new engine.
+     *
+     * @param metrics the metrics receiving the computation times
+     */
+    BBB_predictorDescriptorEngine(final BBB_predictorMetrics metrics) {
+        m_metrics = metrics;
+    }
+
+    /**
+     * Binds a new molecule to this engine and forgets all descriptor values
+     * of the previous one.
+     *
+     * @param molecule a molecule
+     */
+    void bind(final IAtomContainer molecule) {
+        m_molecule = molecule;
+        m_parser = null;
+        m_title = null;
+        m_graphLoaded = false;
+        m_hasGraph = false;
+        m_hasBCUTInput = false;
+        m_bcutInput = null;
+        m_computedMask = 0;
+        m_hasStructureKey = false;
+        m_moleculeCount++;
+    }
+
+    /**
+     * Binds the record last parsed by a connection table parser to this
+     * engine, without creating a molecule, and forgets all descriptor values
+     * of the previous one. The parser must not parse another record while
+     * the record is bound. Descriptor stores cannot be used for such records.
+     *
+     * @param parser a parser that has parsed a record successfully
+     * @param title the record's title, may be <code>null</code>
+     */
+    void bind(final BBB_predictorCtabParser parser, final String title) {
+        parser.fill(m_graph);
+        m_molecule = null;
+        m_parser = parser;
+        m_title = title;
+        m_graphLoaded = true;
+        m_hasGraph = true;
+        m_hasBCUTInput = false;
+        m_bcutInput = null;
+        m_computedMask = 0;
+        m_hasStructureKey = false;
+        m_moleculeCount++;
+    }
+
+    /**
+     * Returns the number of atoms of the bound molecule.
+     *
+     * @return the number of atoms
+     */
+    int atomCount() {
+        return (m_parser != null) ? m_graph.atomCount()
+                : m_molecule.getAtomCount();
+    }
+
+    /**
+     * Returns the number of bonds of the bound molecule.
+     *
+     * @return the number of bonds
+     */
+    int bondCount() {
+        return (m_parser != null) ? m_graph.bondCount()
+                : m_molecule.getBondCount();
+    }
+
+    /**
+     * Returns the bound molecule, creating it from the parser if it has been
+     * bound from one.
+     */
+    private IAtomContainer molecule() {
+        if (m_molecule == null) {
+            m_molecule = m_parser.createAtomContainer(
+                    DefaultChemObjectBuilder.getInstance(), m_title);
+        }
+        return m_molecule;
+    }
+
+    /**
+     * Returns whether the graph describes the bound molecule, loading it from
+     * the molecule the first time.
+     */
+    private boolean loadGraph() {
+        if (!m_graphLoaded) {
+            m_graphLoaded = true;
+            m_hasGraph = m_graph.load(m_molecule);
+        }
+        return m_hasGraph;
+    }
+
+    /**
+     * Fills in all descriptor values that are stored for the bound molecule
+     * and have not been computed yet. They are then returned by
+     * {@link #get(BBB_predictorDescriptor)} without being computed.
+     *
+     * @param store a descriptor store
+     * @return the mask of descriptors found in the store
+     */
+    int loadFrom(final BBB_predictorDescriptorStore store) {
+        double[] stored = m_storedValues;
+        int storedMask = store.get(structureKey(), m_molecule.getAtomCount(),
+                m_molecule.getBondCount(), stored);
+        for (int i = 0; i < m_values.length; i++) {
+            int bit = 1 << i;
+            if (((storedMask & bit) != 0) && ((m_computedMask & bit) == 0)) {
+                m_values[i] = stored[i];
+                m_computedMask |= bit;
+            }
+        }
+        return storedMask;
+    }
+
+    /**
+     * Puts the descriptor values known for the bound molecule into the store,
+     * if any of them are not already stored there.
+     *
+     * @param store a descriptor store
+     * @param storedMask the mask returned by
+     *            {@link #loadFrom(BBB_predictorDescriptorStore)} for this store
+     */
+    void storeTo(final BBB_predictorDescriptorStore store, final int storedMask) {
+        if ((m_computedMask & ~storedMask) != 0) {
+            store.put(structureKey(), m_molecule.getAtomCount(),
+                    m_molecule.getBondCount(), m_computedMask, m_values);
+        }
+    }
+
+    /**
+     * Returns the mask of descriptors whose values are known for the bound
+     * molecule, either computed or loaded from a store.
+     *
+     * @return a bit mask indexed by the descriptors' ordinals
+     */
+    int knownMask() {
+        return m_computedMask;
+    }
+
+    private long structureKey() {
+        if (!m_hasStructureKey) {
+            m_structureKey = m_hashGenerator.generate(m_molecule);
+            m_hasStructureKey = true;
+        }
+        return m_structureKey;
+    }
+
+    /**
+     * Returns the value of the given descriptor for the bound molecule,
+     * computing it if it has not been requested before.
+     *
+     * @param descriptor a descriptor
+     * @return the descriptor's value
+     */
+    double get(final BBB_predictorDescriptor descriptor) {
+        int i = descriptor.ordinal();
+        if ((m_computedMask & (1 << i)) == 0) {
+            Object event =
+                    BBB_predictorFlightRecorder.begin(Type.DESCRIPTOR_COMPUTED);
+            long start = System.nanoTime();
+            m_values[i] = compute(descriptor);
+            m_metrics.timer(descriptor).record(System.nanoTime() - start);
+            if (event != null) {
+                BBB_predictorFlightRecorder.commit(event, descriptor.label(),
+                        (m_parser != null) ? String.valueOf(m_title)
+                                : String.valueOf(m_molecule.getProperty(
+                                        CDKConstants.TITLE)),
+                        atomCount());
+            }
+            m_computedMask |= 1 << i;
+            m_computations[i]++;
+        }
+        return m_values[i];
+    }
+
+    /**
+     * Creates the BCUT input: perceives atom types, implicit hydrogens and
+     * aromaticity on a copy of the bound molecule, as CDK's BCUT descriptor
+     * does. The bound molecule itself is left as it has been read, the other
+     * descriptors depend on it.
+     */
+    private void createBCUTInput() {
+        m_hasBCUTInput = true;
+        m_bcutInput = null;
+        try {
+            IAtomContainer copy = (IAtomContainer)molecule().clone();
+            AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(copy);
+            if (m_hydrogenAdder == null) {
+                m_hydrogenAdder =
+                        CDKHydrogenAdder.getInstance(copy.getBuilder());
+            }
+            m_hydrogenAdder.addImplicitHydrogens(copy);
+            AROMATICITY.apply(copy);
+            m_bcutInput = copy;
+        } catch (Exception ex) {
+            // e.g. unknown atom types, BCUT is then left to CDK
+            LOGGER.debug("Could not type molecule "
+                    + m_molecule.getProperty(CDKConstants.TITLE) + ": "
+                    + ex.getMessage());
+        }
+    }
+
+    private double compute(final BBB_predictorDescriptor descriptor) {
+        switch (descriptor) {
+            case ALOGP:
+                return arrayValue(m_alogp.calculate(molecule()), ALOGP_INDEX);
+            case TPSA:
+                double tpsa = loadGraph() ? m_fastTPSA.compute(m_graph)
+                        : Double.NaN;
+                // NaN if the molecule is left to CDK
+                return !Double.isNaN(tpsa) ? tpsa
+                        : doubleValue(m_tpsa.calculate(molecule()));
+            case BCUT:
+                if (!m_hasBCUTInput) {
+                    createBCUTInput();
+                }
+                // NaN if the molecule is left to CDK, also if it could not
+                // be typed
+                double bcut = (m_bcutInput != null)
+                        ? m_fastBCUT.compute(m_bcutInput) : Double.NaN;
+                return !Double.isNaN(bcut) ? bcut
+                        : arrayValue(m_bcut.calculate(molecule()), BCUT_INDEX);
+            case MANNHOLD_LOGP:
+                if (m_parser != null) {
+                    return mannholdLogP(m_graph.carbonCount(),
+                            m_graph.heteroAtomCount());
+                }
+                return doubleValue(m_mannholdLogP.calculate(m_molecule));
+            default:
+                throw new IllegalArgumentException("Unknown descriptor: "
+                        + descriptor);
+        }
+    }
+
+    /**
+     * Computes Mannhold LogP the way CDK's <code>MannholdLogPDescriptor</code>
+     * does, from the numbers of carbon and hetero atoms.
+     *
+     * @param carbonCount the number of carbon atoms
+     * @param heteroAtomCount the number of atoms other than carbon and
+     *            hydrogen
+     * @return Mannhold LogP
+     */
+    static double mannholdLogP(final int carbonCount,
+            final int heteroAtomCount) {
+        // same expression as CDK, for identical rounding
+        return 1.46 + 0.11 * carbonCount - 0.11 * heteroAtomCount;
+    }
+
+    /**
+     * Returns the number of molecules bound to this engine so far.
+     *
+     * @return the number of molecules
+     */
+    long moleculeCount() {
+        return m_moleculeCount;
+    }
+
+    /**
+     * Returns how often the given descriptor has been computed so far.
+     *
+     * @param descriptor a descriptor
+     * @return the number of computations
+     */
+    long computations(final BBB_predictorDescriptor descriptor) {
+        return m_computations[descriptor.ordinal()];
+    }
+
+    /**
+     * Reads a single value result without formatting it. Results of other
+     * types are reported as {@link Double#NaN}.
+     *
+     * @param value a descriptor value
+     * @return the descriptor's value
+     */
+    static double doubleValue(final DescriptorValue value) {
+        IDescriptorResult result = value.getValue();
+        if (result instanceof DoubleResult) {
+            return ((DoubleResult)result).doubleValue();
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Reads one element of an array result without formatting the whole
+     * array. Results of other types or too short arrays are reported as
+     * {@link Double#NaN}.
+     *
+     * @param value a descriptor value
+     * @param index the index of the requested element
+     * @return the element's value
+     */
+    static double arrayValue(final DescriptorValue value, final int index) {
+        IDescriptorResult result = value.getValue();
+        if ((result instanceof DoubleArrayResult) && (index < result.length())) {
+            return ((DoubleArrayResult)result).get(index);
+        }
+        return Double.NaN;
+    }
+}
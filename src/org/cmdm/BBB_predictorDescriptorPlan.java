@@ -0,0 +1,117 @@
+package org.cmdm;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The set of descriptors that has to be computed for the predictions enabled
+ * in the node settings. The LogBB classification and the LogPS regression are
+ * constant and need no descriptor at all, the LogPS classification needs
+ * ALogP, BCUT and TPSA, and the LogBB regression needs TPSA and Mannhold LogP.
+ * Depending on the ALogP value, the LogPS classification consults only one of
+ * BCUT and TPSA, so planned descriptors are not necessarily computed for every
+ * molecule.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorDescriptorPlan {
+    private static final Set<BBB_predictorDescriptor> GRAPH_DESCRIPTORS =
+            EnumSet.of(BBB_predictorDescriptor.TPSA,
+                    BBB_predictorDescriptor.MANNHOLD_LOGP);
+
+    private final Set<BBB_predictorDescriptor> m_required;
+
+    private BBB_predictorDescriptorPlan(
+            final Set<BBB_predictorDescriptor> required) {
+        m_required = Collections.unmodifiableSet(required);
+    }
+
+    /**
+     * Derives the plan from the predictions enabled in the given settings.
+     *
+     * @param settings the node settings
+     * @return a new plan
+     */
+    static BBB_predictorDescriptorPlan create(
+            final BBB_predictorNodeSettings settings) {
+        EnumSet<BBB_predictorDescriptor> required =
+                EnumSet.noneOf(BBB_predictorDescriptor.class);
+        if (settings.isLogPSclassify()) {
+            required.add(BBB_predictorDescriptor.ALOGP);
+            required.add(BBB_predictorDescriptor.BCUT);
+            required.add(BBB_predictorDescriptor.TPSA);
+        }
+        if (settings.isLogBBreg()) {
+            required.add(BBB_predictorDescriptor.TPSA);
+            required.add(BBB_predictorDescriptor.MANNHOLD_LOGP);
+        }
+        return new BBB_predictorDescriptorPlan(required);
+    }
+
+    /**
+     * Returns if the given descriptor is needed by any enabled prediction.
+     *
+     * @param descriptor a descriptor
+     * @return <code>true</code> if the descriptor must be computed,
+     *         <code>false</code> otherwise
+     */
+    boolean requires(final BBB_predictorDescriptor descriptor) {
+        return m_required.contains(descriptor);
+    }
+
+    /**
+     * Returns the required descriptors as a bit mask.
+     *
+     * @return a bit mask indexed by the descriptors' ordinals
+     */
+    int mask() {
+        int mask = 0;
+        for (BBB_predictorDescriptor d : m_required) {
+            mask |= 1 << d.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * Returns if no descriptor is needed at all. In this case the molecules
+     * do not even have to be parsed.
+     *
+     * @return <code>true</code> if no descriptor is needed,
+     *         <code>false</code> otherwise
+     */
+    boolean isEmpty() {
+        return m_required.isEmpty();
+    }
+
+    /**
+     * Returns if all required descriptors can be computed from a connection
+     * table's {@link BBB_predictorMoleculeGraph}, i.e. only TPSA and Mannhold
+     * LogP are needed. Records the connection table parser understands are
+     * then scored without creating a molecule.
+     *
+     * @return <code>true</code> if descriptors are needed and all of them
+     *         can be computed from the graph, <code>false</code> otherwise
+     */
+    boolean isGraphOnly() {
+        return !m_required.isEmpty()
+                && GRAPH_DESCRIPTORS.containsAll(m_required);
+    }
+
+    /**
+     * Returns the required descriptors.
+     *
+     * @return an unmodifiable set of descriptors
+     */
+    Set<BBB_predictorDescriptor> required() {
+        return m_required;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return m_required.toString();
+    }
+}
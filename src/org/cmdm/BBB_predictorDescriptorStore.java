@@ -0,0 +1,37 @@
+package org.cmdm;
+
+/**
+ * Storage for descriptor values of molecules, keyed by a canonical hash of
+ * the molecule's structure. Values are exchanged as arrays indexed by the
+ * {@link BBB_predictorDescriptor descriptors'} ordinals together with a bit
+ * mask telling which of the entries are valid. Implementations must be thread
+ * safe.
+ *
+ * @author Yi Hsiao
+ */
+interface BBB_predictorDescriptorStore {
+    /**
+     * Looks up the descriptors stored for a structure.
+     *
+     * @param key the structure key
+     * @param atomCount the structure's number of atoms
+     * @param bondCount the structure's number of bonds
+     * @param values array into which the stored values are copied, indexed by
+     *            the descriptors' ordinals
+     * @return the mask of stored descriptors, 0 if the structure is unknown
+     */
+    int get(long key, int atomCount, int bondCount, double[] values);
+
+    /**
+     * Stores the descriptors of a structure, merging them with values that
+     * are already stored for it.
+     *
+     * @param key the structure key
+     * @param atomCount the structure's number of atoms
+     * @param bondCount the structure's number of bonds
+     * @param mask the mask of descriptors contained in <code>values</code>
+     * @param values the descriptor values, indexed by the descriptors'
+     *            ordinals
+     */
+    void put(long key, int atomCount, int bondCount, int mask, double[] values);
+}
@@ -0,0 +1,157 @@
+package org.cmdm;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the descriptor values of all structures seen during a single
+ * execution, so structurally identical records are only scored once. The
+ * structure keys are kept in a primitive open addressing hash set that
+ * points into densely packed value arrays; no objects are allocated per
+ * structure. All methods are thread safe.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorDuplicateTable implements BBB_predictorDescriptorStore {
+    private static final int STRIDE = BBB_predictorDescriptor.values().length;
+
+    private long[] m_keys = new long[1024];
+
+    /** Index into the dense arrays plus one, 0 marks an empty slot. */
+    private int[] m_slots = new int[1024];
+
+    private long[] m_signatures = new long[512];
+
+    private int[] m_masks = new int[512];
+
+    private double[] m_values = new double[512 * STRIDE];
+
+    private int m_size;
+
+    private long m_lookups;
+
+    private long m_duplicates;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int get(final long key, final int atomCount,
+            final int bondCount, final double[] values) {
+        m_lookups++;
+        int slot = find(key, signature(atomCount, bondCount));
+        if (m_slots[slot] == 0) {
+            return 0;
+        }
+        m_duplicates++;
+        int index = m_slots[slot] - 1;
+        int mask = m_masks[index];
+        for (int i = 0; i < STRIDE; i++) {
+            if ((mask & (1 << i)) != 0) {
+                values[i] = m_values[index * STRIDE + i];
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void put(final long key, final int atomCount,
+            final int bondCount, final int mask, final double[] values) {
+        long signature = signature(atomCount, bondCount);
+        int slot = find(key, signature);
+        int index;
+        if (m_slots[slot] == 0) {
+            if (m_size >= m_signatures.length) {
+                growValues();
+            }
+            index = m_size++;
+            m_keys[slot] = key;
+            m_slots[slot] = index + 1;
+            m_signatures[index] = signature;
+            if (2 * m_size > m_keys.length) {
+                rehash();
+            }
+        } else {
+            index = m_slots[slot] - 1;
+        }
+        for (int i = 0; i < STRIDE; i++) {
+            if ((mask & (1 << i)) != 0) {
+                m_values[index * STRIDE + i] = values[i];
+            }
+        }
+        m_masks[index] |= mask;
+    }
+
+    /**
+     * Returns the number of distinct structures seen so far.
+     *
+     * @return the number of structures
+     */
+    synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * Returns the number of lookups so far.
+     *
+     * @return the number of lookups
+     */
+    synchronized long lookups() {
+        return m_lookups;
+    }
+
+    /**
+     * Returns the number of lookups that found an already seen structure.
+     *
+     * @return the number of duplicates
+     */
+    synchronized long duplicates() {
+        return m_duplicates;
+    }
+
+    private int find(final long key, final long signature) {
+        int mask = m_keys.length - 1;
+        int slot = hash(key) & mask;
+        while ((m_slots[slot] != 0) && ((m_keys[slot] != key)
+                || (m_signatures[m_slots[slot] - 1] != signature))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldKeys = m_keys;
+        int[] oldSlots = m_slots;
+        m_keys = new long[oldKeys.length * 2];
+        m_slots = new int[oldSlots.length * 2];
+        int mask = m_keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (m_slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                m_keys[slot] = oldKeys[i];
+                m_slots[slot] = oldSlots[i];
+            }
+        }
+    }
+
+    private void growValues() {
+        int capacity = m_signatures.length + (m_signatures.length >> 1);
+        m_signatures = Arrays.copyOf(m_signatures, capacity);
+        m_masks = Arrays.copyOf(m_masks, capacity);
+        m_values = Arrays.copyOf(m_values, capacity * STRIDE);
+    }
+
+    private static long signature(final int atomCount, final int bondCount) {
+        return ((long)atomCount << 32) | (bondCount & 0xffffffffL);
+    }
+
+    private static int hash(final long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,185 @@
+package org.cmdm;
+
+/**
+ * Lookup table for chemical elements that works directly on the characters
+ * of an atom symbol, so no string has to be created for each atom.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorElements {
+    private static final String[] SYMBOLS = {null,
+        "H", "He", "Li", "Be", "B", "C", "N", "O", "F", "Ne",
+        "Na", "Mg", "Al", "Si", "P", "S", "Cl", "Ar", "K", "Ca",
+        "Sc", "Ti", "V", "Cr", "Mn", "Fe", "Co", "Ni", "Cu", "Zn",
+        "Ga", "Ge", "As", "Se", "Br", "Kr", "Rb", "Sr", "Y", "Zr",
+        "Nb", "Mo", "Tc", "Ru", "Rh", "Pd", "Ag", "Cd", "In", "Sn",
+        "Sb", "Te", "I", "Xe", "Cs", "Ba", "La", "Ce", "Pr", "Nd",
+        "Pm", "Sm", "Eu", "Gd", "Tb", "Dy", "Ho", "Er", "Tm", "Yb",
+        "Lu", "Hf", "Ta", "W", "Re", "Os", "Ir", "Pt", "Au", "Hg",
+        "Tl", "Pb", "Bi", "Po", "At", "Rn", "Fr", "Ra", "Ac", "Th",
+        "Pa", "U", "Np", "Pu", "Am", "Cm", "Bk", "Cf", "Es", "Fm",
+        "Md", "No", "Lr", "Rf", "Db", "Sg", "Bh", "Hs", "Mt", "Ds",
+        "Rg", "Cn", "Nh", "Fl", "Mc", "Lv", "Ts", "Og"};
+
+    /** Atomic numbers indexed by {@link #code(char, char)}. */
+    private static final byte[] NUMBERS = new byte[128 * 128];
+
+    static {
+        for (int z = 1; z < SYMBOLS.length; z++) {
+            String s = SYMBOLS[z];
+            NUMBERS[code(s.charAt(0), (s.length() > 1) ? s.charAt(1) : ' ')] =
+                    (byte)z;
+        }
+    }
+
+    /** Atomic number of hydrogen. */
+    static final int H = 1;
+
+    /** Atomic number of carbon. */
+    static final int C = 6;
+
+    private BBB_predictorElements() {
+    }
+
+    private static int code(final char first, final char second) {
+        return ((first & 0x7f) << 7) | (second & 0x7f);
+    }
+
+    /**
+     * Returns the atomic number for an atom symbol given by its characters.
+     *
+     * @param first the symbol's first character
+     * @param second the symbol's second character, a space for one letter
+     *            symbols
+     * @return the atomic number, or 0 if the symbol is not an element
+     */
+    static int atomicNumber(final char first, final char second) {
+        if ((first > 0x7f) || (second > 0x7f)) {
+            return 0;
+        }
+        return NUMBERS[code(first, second)];
+    }
+
+    /**
+     * Returns the symbol of an element.
+     *
+     * @param atomicNumber the element's atomic number
+     * @return the element's symbol
+     */
+    static String symbol(final int atomicNumber) {
+        return SYMBOLS[atomicNumber];
+    }
+
+    /**
+     * Returns the number of implicit hydrogens of an atom according to the
+     * MDL valence model, i.e. the difference between the atom's explicit
+     * valence and the next higher default valence of its element and charge.
+     * Only the elements and charges commonly found in drug-like molecules and
+     * their counter ions are covered.
+     *
+     * @param atomicNumber the atom's atomic number
+     * @param charge the atom's formal charge
+     * @param valence the sum of the orders of the atom's bonds
+     * @return the number of implicit hydrogens, or -1 if the element and
+     *         charge are not covered
+     */
+    static int implicitHydrogens(final int atomicNumber, final int charge,
+            final int valence) {
+        int[] valences = defaultValences(atomicNumber, charge);
+        if (valences == null) {
+            return -1;
+        }
+        for (int v : valences) {
+            if (valence <= v) {
+                return v - valence;
+            }
+        }
+        return 0;
+    }
+
+    private static final int[] NONE = {0};
+
+    private static final int[] ONE = {1};
+
+    private static final int[] TWO = {2};
+
+    private static final int[] THREE = {3};
+
+    private static final int[] FOUR = {4};
+
+    private static final int[] THREE_FIVE = {3, 5};
+
+    private static final int[] TWO_FOUR_SIX = {2, 4, 6};
+
+    private static final int[] ONE_THREE_FIVE = {1, 3, 5};
+
+    private static final int[] ONE_THREE_FIVE_SEVEN = {1, 3, 5, 7};
+
+    private static int[] defaultValences(final int atomicNumber,
+            final int charge) {
+        switch (atomicNumber) {
+            case 1: // H
+                return (charge == 0) ? ONE : null;
+            case 3: // Li
+            case 11: // Na
+            case 19: // K
+                return (charge == 0) ? ONE : (charge == 1) ? NONE : null;
+            case 12: // Mg
+            case 20: // Ca
+                return (charge == 0) ? TWO : (charge == 2) ? NONE : null;
+            case 5: // B
+                return (charge == 0) ? THREE : (charge == -1) ? FOUR : null;
+            case 6: // C
+                return (charge == 0) ? FOUR : (Math.abs(charge) == 1) ? THREE
+                        : null;
+            case 7: // N
+                switch (charge) {
+                    case 0:
+                        return THREE_FIVE;
+                    case 1:
+                        return FOUR;
+                    case -1:
+                        return TWO;
+                    default:
+                        return null;
+                }
+            case 8: // O
+                switch (charge) {
+                    case 0:
+                        return TWO;
+                    case 1:
+                        return THREE;
+                    case -1:
+                        return ONE;
+                    default:
+                        return null;
+                }
+            case 9: // F
+                return (charge == 0) ? ONE : (charge == -1) ? NONE : null;
+            case 14: // Si
+                return (charge == 0) ? FOUR : null;
+            case 15: // P
+                return (charge == 0) ? THREE_FIVE : (charge == 1) ? FOUR
+                        : null;
+            case 16: // S
+            case 34: // Se
+                switch (charge) {
+                    case 0:
+                        return TWO_FOUR_SIX;
+                    case 1:
+                        return THREE_FIVE;
+                    case -1:
+                        return ONE_THREE_FIVE;
+                    default:
+                        return null;
+                }
+            case 17: // Cl
+            case 35: // Br
+            case 53: // I
+                return (charge == 0) ? ONE_THREE_FIVE_SEVEN
+                        : (charge == -1) ? NONE : null;
+            default:
+                return null;
+        }
+    }
+}
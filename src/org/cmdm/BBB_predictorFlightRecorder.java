@@ -0,0 +1,322 @@
+package org.cmdm;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Emits JDK Flight Recorder events for the stages of scoring, so that the
+ * time spent in CDK can be attributed to single molecules in a recording.
+ * <p>
+ * The plug-in is compiled for Java 8, which has no <code>jdk.jfr</code> API,
+ * so the event types are defined at runtime through
+ * <code>jdk.jfr.EventFactory</code>. On Java versions without it all methods
+ * do nothing. The event types are disabled by default and must be enabled in
+ * the recording's settings, e.g. with
+ * <code>jcmd &lt;pid&gt; JFR.start settings=bbb.jfc</code> where
+ * <code>bbb.jfc</code> sets <code>org.cmdm.DescriptorComputed#enabled</code>
+ * to <code>true</code>. While no recording is running, {@link #begin(Type)}
+ * only reads a volatile flag; the callers only compute the event's values if
+ * it returned an event.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorFlightRecorder {
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(BBB_predictorFlightRecorder.class);
+
+    /** How often the enabled state of an event type is checked, in ns. */
+    private static final long CHECK_INTERVAL = 1000000000L;
+
+    /** The event types. */
+    enum Type {
+        /** A record has been tokenised and turned into a molecule. */
+        RECORD_PARSED("RecordParsed", "Record Parsed",
+                new Class<?>[]{long.class, String.class, int.class, int.class},
+                new String[]{"index", "molecule", "atoms", "bonds"}),
+        /** A descriptor has been computed for a molecule. */
+        DESCRIPTOR_COMPUTED("DescriptorComputed", "Descriptor Computed",
+                new Class<?>[]{String.class, String.class, int.class},
+                new String[]{"descriptor", "molecule", "atoms"}),
+        /** A number of consecutive rows has been written to the outputs. */
+        BATCH_WRITTEN("BatchWritten", "Batch Written",
+                new Class<?>[]{int.class, int.class, long.class},
+                new String[]{"rows", "brokenRows", "writeNanos"}),
+        /** Descriptor values have been looked up for a molecule. */
+        CACHE_LOOKUP("CacheLookup", "Cache Lookup",
+                new Class<?>[]{String.class, boolean.class, int.class},
+                new String[]{"store", "hit", "atoms"});
+
+        private final String m_name;
+
+        private final String m_label;
+
+        private final Class<?>[] m_fieldTypes;
+
+        private final String[] m_fieldNames;
+
+        private volatile Object m_factory;
+
+        private volatile Object m_eventType;
+
+        private volatile boolean m_enabled;
+
+        private volatile long m_checked;
+
+        private Type(final String name, final String label,
+                final Class<?>[] fieldTypes, final String[] fieldNames) {
+            m_name = name;
+            m_label = label;
+            m_fieldTypes = fieldTypes;
+            m_fieldNames = fieldNames;
+        }
+
+        private boolean isEnabled() {
+            long now = System.nanoTime();
+            if (now - m_checked > CHECK_INTERVAL) {
+                m_checked = now;
+                try {
+                    m_enabled = (Boolean)s_isEnabled.invoke(m_eventType);
+                } catch (Exception ex) {
+                    m_enabled = false;
+                }
+            }
+            return m_enabled;
+        }
+    }
+
+    private static volatile boolean s_recording;
+
+    private static Method s_newEvent;
+
+    private static Method s_isEnabled;
+
+    private static Method s_begin;
+
+    private static Method s_end;
+
+    private static Method s_set;
+
+    private static Method s_shouldCommit;
+
+    private static Method s_commit;
+
+    static {
+        try {
+            init();
+        } catch (Throwable ex) {
+            // Java 8 or a JVM without the Flight Recorder API
+            LOGGER.debug("Flight Recorder events are not available: " + ex);
+        }
+    }
+
+    private BBB_predictorFlightRecorder() {
+    }
+
+    private static void init() throws Exception {
+        Class<?> eventFactory = jfrClass("jdk.jfr.EventFactory");
+        Class<?> eventType = jfrClass("jdk.jfr.EventType");
+        Class<?> event = jfrClass("jdk.jfr.Event");
+        Class<?> annotationElement = jfrClass("jdk.jfr.AnnotationElement");
+        Class<?> valueDescriptor = jfrClass("jdk.jfr.ValueDescriptor");
+        Constructor<?> newAnnotation =
+                annotationElement.getConstructor(Class.class, Object.class);
+        Constructor<?> newValue =
+                valueDescriptor.getConstructor(Class.class, String.class);
+        Method create = eventFactory.getMethod("create", List.class,
+                List.class);
+        Method getEventType = eventFactory.getMethod("getEventType");
+        s_newEvent = eventFactory.getMethod("newEvent");
+        s_isEnabled = eventType.getMethod("isEnabled");
+        s_begin = event.getMethod("begin");
+        s_end = event.getMethod("end");
+        s_set = event.getMethod("set", int.class, Object.class);
+        s_shouldCommit = event.getMethod("shouldCommit");
+        s_commit = event.getMethod("commit");
+
+        for (Type type : Type.values()) {
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(newAnnotation.newInstance(
+                    jfrClass("jdk.jfr.Name"), "org.cmdm." + type.m_name));
+            annotations.add(newAnnotation.newInstance(
+                    jfrClass("jdk.jfr.Label"), type.m_label));
+            annotations.add(newAnnotation.newInstance(
+                    jfrClass("jdk.jfr.Category"),
+                    new String[]{"BBB_predictor"}));
+            annotations.add(newAnnotation.newInstance(
+                    jfrClass("jdk.jfr.Enabled"), Boolean.FALSE));
+            annotations.add(newAnnotation.newInstance(
+                    jfrClass("jdk.jfr.StackTrace"), Boolean.FALSE));
+            List<Object> fields = new ArrayList<Object>();
+            for (int i = 0; i < type.m_fieldNames.length; i++) {
+                fields.add(newValue.newInstance(type.m_fieldTypes[i],
+                        type.m_fieldNames[i]));
+            }
+            Object factory = create.invoke(null, annotations, fields);
+            type.m_eventType = getEventType.invoke(factory);
+            type.m_factory = factory;
+            type.m_checked = System.nanoTime() - 2 * CHECK_INTERVAL;
+        }
+
+        // track whether any recording is running
+        Class<?> flightRecorder = jfrClass("jdk.jfr.FlightRecorder");
+        final Class<?> listener =
+                jfrClass("jdk.jfr.FlightRecorderListener");
+        final Method getFlightRecorder =
+                flightRecorder.getMethod("getFlightRecorder");
+        final Method getRecordings = flightRecorder.getMethod("getRecordings");
+        final Method getState =
+                jfrClass("jdk.jfr.Recording").getMethod("getState");
+        Object proxy = Proxy.newProxyInstance(
+                ClassLoader.getSystemClassLoader(),
+                new Class<?>[]{listener}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object p, final Method method,
+                            final Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if ("recordingStateChanged".equals(name)
+                                || "recorderInitialized".equals(name)) {
+                            s_recording = isRecording(getFlightRecorder,
+                                    getRecordings, getState);
+                            for (Type type : Type.values()) {
+                                type.m_checked = System.nanoTime()
+                                        - 2 * CHECK_INTERVAL;
+                            }
+                            return null;
+                        } else if ("hashCode".equals(name)) {
+                            return System.identityHashCode(p);
+                        } else if ("equals".equals(name)) {
+                            return p == args[0];
+                        } else if ("toString".equals(name)) {
+                            return "BBB_predictor recording listener";
+                        }
+                        return null;
+                    }
+                });
+        flightRecorder.getMethod("addListener", listener).invoke(null, proxy);
+    }
+
+    /**
+     * Loads a class of the Flight Recorder API, which is not visible to the
+     * plug-in's class loader unless the framework delegates to the JDK.
+     */
+    private static Class<?> jfrClass(final String name)
+            throws ClassNotFoundException {
+        return Class.forName(name, true, ClassLoader.getSystemClassLoader());
+    }
+
+    private static boolean isRecording(final Method getFlightRecorder,
+            final Method getRecordings, final Method getState)
+            throws Exception {
+        Object recorder = getFlightRecorder.invoke(null);
+        for (Object recording : (List<?>)getRecordings.invoke(recorder)) {
+            if ("RUNNING".equals(String.valueOf(getState.invoke(recording)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts an event if a recording is running and the event type is
+     * enabled in it.
+     *
+     * @param type the event type
+     * @return the started event, to be passed to
+     *         {@link #commit(Object, Object...)}, or <code>null</code>
+     */
+    static Object begin(final Type type) {
+        if (!s_recording || !type.isEnabled()) {
+            return null;
+        }
+        try {
+            Object event = s_newEvent.invoke(type.m_factory);
+            s_begin.invoke(event);
+            return event;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Ends and commits an event started by {@link #begin(Type)}.
+     *
+     * @param event the event, must not be <code>null</code>
+     * @param values the values of the event type's fields, in order
+     */
+    static void commit(final Object event, final Object... values) {
+        try {
+            s_end.invoke(event);
+            if (!(Boolean)s_shouldCommit.invoke(event)) {
+                return;
+            }
+            for (int i = 0; i < values.length; i++) {
+                s_set.invoke(event, i, values[i]);
+            }
+            s_commit.invoke(event);
+        } catch (Exception ex) {
+            LOGGER.debug("Could not commit Flight Recorder event with values "
+                    + Arrays.toString(values) + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Groups the rows written by one execution into
+     * {@link Type#BATCH_WRITTEN} events of {@link #SIZE} rows. Must be used
+     * from a single thread.
+     */
+    static final class Batch {
+        /** The number of rows per event. */
+        static final int SIZE = 1000;
+
+        private Object m_event;
+
+        private int m_rows;
+
+        private int m_brokenRows;
+
+        private long m_writeNanos;
+
+        /**
+         * Adds a written row.
+         *
+         * @param broken <code>true</code> if the row went to the broken
+         *            records table
+         * @param nanos the time spent writing the row
+         */
+        void written(final boolean broken, final long nanos) {
+            if (m_event == null) {
+                m_event = begin(Type.BATCH_WRITTEN);
+                if (m_event == null) {
+                    return;
+                }
+            }
+            m_rows++;
+            if (broken) {
+                m_brokenRows++;
+            }
+            m_writeNanos += nanos;
+            if (m_rows >= SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Commits the event for the rows added since the last one.
+         */
+        void flush() {
+            if (m_event != null) {
+                commit(m_event, m_rows, m_brokenRows, m_writeNanos);
+                m_event = null;
+                m_rows = 0;
+                m_brokenRows = 0;
+                m_writeNanos = 0;
+            }
+        }
+    }
+}
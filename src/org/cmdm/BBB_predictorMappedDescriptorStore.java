@@ -0,0 +1,211 @@
+package org.cmdm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * The on-disk tier of the {@link BBB_predictorDescriptorCache}. Descriptor
+ * values are stored in a memory-mapped file that is organised as an open
+ * addressing hash table with a fixed number of slots, so its size never
+ * exceeds the configured limit. If all slots of a probe sequence are taken,
+ * the first slot is overwritten.
+ *
+ * <p>
+ * Each slot is 64 bytes long and contains the structure key, the atom and
+ * bond count (used to detect hash collisions), the mask of stored descriptors
+ * and one double for each {@link BBB_predictorDescriptor}. The file is locked
+ * while it is open, so it cannot be corrupted by a second KNIME instance.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorMappedDescriptorStore implements
+        BBB_predictorDescriptorStore {
+    private static final int MAGIC = 0x42424243; // "BBBC"
+
+    /** Must be increased whenever the layout or the descriptors change. */
+    private static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 64;
+
+    private static final int MAX_PROBES = 8;
+
+    /** Keeps the mapped file below the 2GB limit of a single mapping. */
+    private static final int MAX_SLOTS = 1 << 24;
+
+    private static final int OCCUPIED = 1 << 31;
+
+    private static final int OFFSET_ATOMS = 8;
+
+    private static final int OFFSET_BONDS = 12;
+
+    private static final int OFFSET_MASK = 16;
+
+    private static final int OFFSET_VALUES = 24;
+
+    private final RandomAccessFile m_file;
+
+    private final FileLock m_lock;
+
+    private final MappedByteBuffer m_buffer;
+
+    private final int m_slotMask;
+
+    private BBB_predictorMappedDescriptorStore(final RandomAccessFile file,
+            final FileLock lock, final MappedByteBuffer buffer, final int slots) {
+        m_file = file;
+        m_lock = lock;
+        m_buffer = buffer;
+        m_slotMask = slots - 1;
+    }
+
+    /**
+     * Opens the store in the given file, creating or re-initialising it if it
+     * does not exist or has an incompatible layout.
+     *
+     * @param file the cache file
+     * @param maxEntries the maximum number of entries, rounded up to the next
+     *            power of two
+     * @return the store or <code>null</code> if the file is in use by another
+     *         process
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    static BBB_predictorMappedDescriptorStore open(final File file,
+            final int maxEntries) throws IOException {
+        int slots = Integer.highestOneBit(
+                Math.max(1, Math.min(MAX_SLOTS, maxEntries) - 1)) << 1;
+        long size = HEADER_SIZE + (long)slots * SLOT_SIZE;
+
+        file.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) {
+                raf.close();
+                return null;
+            }
+            boolean compatible = (raf.length() == size) && (raf.readInt() == MAGIC)
+                    && (raf.readInt() == VERSION) && (raf.readInt() == slots);
+            if (!compatible) {
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!compatible) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, slots);
+            }
+            return new BBB_predictorMappedDescriptorStore(raf, lock, buffer,
+                    slots);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int get(final long key, final int atomCount,
+            final int bondCount, final double[] values) {
+        int slot = find(key, atomCount, bondCount);
+        if (slot < 0) {
+            return 0;
+        }
+        int pos = position(slot);
+        int mask = m_buffer.getInt(pos + OFFSET_MASK) & ~OCCUPIED;
+        for (int i = 0; i < values.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                values[i] = m_buffer.getDouble(pos + OFFSET_VALUES + 8 * i);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void put(final long key, final int atomCount,
+            final int bondCount, final int mask, final double[] values) {
+        int slot = find(key, atomCount, bondCount);
+        int storedMask = 0;
+        if (slot >= 0) {
+            storedMask = m_buffer.getInt(position(slot) + OFFSET_MASK) & ~OCCUPIED;
+        } else {
+            slot = freeSlot(key);
+            // release the slot before overwriting it, so that a process
+            // killed in the middle leaves an empty slot instead of the new
+            // key next to the evicted entry's values
+            m_buffer.putInt(position(slot) + OFFSET_MASK, 0);
+        }
+        int pos = position(slot);
+        m_buffer.putLong(pos, key);
+        m_buffer.putInt(pos + OFFSET_ATOMS, atomCount);
+        m_buffer.putInt(pos + OFFSET_BONDS, bondCount);
+        for (int i = 0; i < values.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                m_buffer.putDouble(pos + OFFSET_VALUES + 8 * i, values[i]);
+            }
+        }
+        m_buffer.putInt(pos + OFFSET_MASK, OCCUPIED | storedMask | mask);
+    }
+
+    /**
+     * Writes all changes to disk and releases the file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void close() throws IOException {
+        m_buffer.force();
+        m_lock.release();
+        m_file.close();
+    }
+
+    private int find(final long key, final int atomCount, final int bondCount) {
+        int home = home(key);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (home + i) & m_slotMask;
+            int pos = position(slot);
+            if ((m_buffer.getInt(pos + OFFSET_MASK) & OCCUPIED) == 0) {
+                return -1;
+            }
+            if ((m_buffer.getLong(pos) == key)
+                    && (m_buffer.getInt(pos + OFFSET_ATOMS) == atomCount)
+                    && (m_buffer.getInt(pos + OFFSET_BONDS) == bondCount)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int freeSlot(final long key) {
+        int home = home(key);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (home + i) & m_slotMask;
+            if ((m_buffer.getInt(position(slot) + OFFSET_MASK) & OCCUPIED) == 0) {
+                return slot;
+            }
+        }
+        // probe sequence is full, the entry in the home slot is evicted; its
+        // mask is cleared by the caller, so none of its values survive
+        return home;
+    }
+
+    private int home(final long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & m_slotMask;
+    }
+
+    private static int position(final int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+}
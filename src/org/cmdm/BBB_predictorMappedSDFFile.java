@@ -0,0 +1,187 @@
+package org.cmdm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A local SDF file mapped into memory. The file is mapped in chunks of at most
+ * {@link #CHUNK_SIZE} bytes, so files larger than 2GB can be read as well.
+ * Record boundaries are found by scanning the mapped bytes for
+ * <code>$$$$</code> lines without decoding them; a record is only turned into
+ * a string by {@link #decode(long, long)}, which may be called concurrently
+ * from several threads for disjoint byte ranges. Records are decoded with
+ * {@link BBB_predictorDefaultSDFReader#CHARSET}.
+ * <p>
+ * Java offers no supported way of unmapping a buffer, so the mappings stay
+ * alive after {@link #close()} until they are garbage collected. This is
+ * relied upon: records handed over while reading may still be decoded after
+ * the file has been closed. Until then the mappings occupy address space
+ * and, on Windows, the file cannot be deleted or replaced.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorMappedSDFFile {
+    /** The maximum size of a single mapping. */
+    static final long CHUNK_SIZE = 1L << 30;
+
+    private static final byte[] TERMINATOR = {'$', '$', '$', '$'};
+
+    private final RandomAccessFile m_file;
+
+    private final MappedByteBuffer[] m_chunks;
+
+    private final long m_size;
+
+    private BBB_predictorMappedSDFFile(final RandomAccessFile file)
+            throws IOException {
+        m_file = file;
+        m_size = file.length();
+        int chunks = (int)((m_size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        m_chunks = new MappedByteBuffer[chunks];
+        FileChannel channel = file.getChannel();
+        for (int i = 0; i < chunks; i++) {
+            long start = i * CHUNK_SIZE;
+            m_chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                    Math.min(CHUNK_SIZE, m_size - start));
+        }
+    }
+
+    /**
+     * Maps a file into memory.
+     *
+     * @param file an SDF file
+     * @return the mapped file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    static BBB_predictorMappedSDFFile open(final File file)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new BBB_predictorMappedSDFFile(raf);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return the size in bytes
+     */
+    long size() {
+        return m_size;
+    }
+
+    private byte get(final long pos) {
+        return m_chunks[(int)(pos / CHUNK_SIZE)].get((int)(pos % CHUNK_SIZE));
+    }
+
+    /**
+     * Finds the end of the record that starts at the given offset, i.e. the
+     * position after its <code>$$$$</code> line. A last record without
+     * terminator ends at the end of the file.
+     *
+     * @param start the record's first byte
+     * @return the position after the record, or -1 if only whitespace is left
+     */
+    long recordEnd(final long start) {
+        boolean blank = true;
+        boolean lineStart = true;
+        long pos = start;
+        while (pos < m_size) {
+            int chunk = (int)(pos / CHUNK_SIZE);
+            MappedByteBuffer buf = m_chunks[chunk];
+            int i = (int)(pos % CHUNK_SIZE);
+            int limit = buf.limit();
+            for (; i < limit; i++) {
+                byte b = buf.get(i);
+                if (lineStart && (b == '$')
+                        && isTerminator(chunk * CHUNK_SIZE + i)) {
+                    return lineEnd(chunk * CHUNK_SIZE + i);
+                }
+                if ((b != ' ') && (b != '\t') && (b != '\r') && (b != '\n')) {
+                    blank = false;
+                }
+                lineStart = (b == '\n');
+            }
+            pos = chunk * CHUNK_SIZE + limit;
+        }
+        return blank ? -1 : m_size;
+    }
+
+    private boolean isTerminator(final long pos) {
+        if (pos + TERMINATOR.length > m_size) {
+            return false;
+        }
+        for (int i = 0; i < TERMINATOR.length; i++) {
+            if (get(pos + i) != TERMINATOR[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long lineEnd(final long pos) {
+        long p = pos;
+        while (p < m_size) {
+            if (get(p++) == '\n') {
+                return p;
+            }
+        }
+        return m_size;
+    }
+
+    /**
+     * Decodes a record. Windows line endings are converted so that the
+     * result looks the same as if the record had been read with
+     * {@link org.knime.chem.base.util.sdf.SDFAnalyzer}.
+     *
+     * @param start the record's first byte
+     * @param end the position after the record's last byte
+     * @return the record's text
+     */
+    String decode(final long start, final long end) {
+        int length = (int)(end - start);
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long pos = start + copied;
+            MappedByteBuffer buf = m_chunks[(int)(pos / CHUNK_SIZE)];
+            int offset = (int)(pos % CHUNK_SIZE);
+            int n = Math.min(length - copied, buf.limit() - offset);
+            // the buffer's position must not be shared between threads
+            ByteBuffer view = buf.duplicate();
+            view.position(offset);
+            view.get(bytes, copied, n);
+            copied += n;
+        }
+        int j = 0;
+        for (int i = 0; i < length; i++) {
+            if ((bytes[i] != '\r') || (i + 1 >= length)
+                    || (bytes[i + 1] != '\n')) {
+                bytes[j++] = bytes[i];
+            }
+        }
+        String text = new String(bytes, 0, j,
+                BBB_predictorDefaultSDFReader.CHARSET);
+        if ((j > 0) && (bytes[j - 1] != '\n')) {
+            text += "\n";
+        }
+        return text;
+    }
+
+    /**
+     * Closes the underlying file. The mappings are not released, see the
+     * class comment; records can still be decoded afterwards.
+     *
+     * @throws IOException if closing fails
+     */
+    void close() throws IOException {
+        m_file.close();
+    }
+}
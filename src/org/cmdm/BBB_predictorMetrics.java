@@ -0,0 +1,508 @@
+package org.cmdm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the stages of scoring: reading a record,
+ * parsing it into a molecule, computing each descriptor, computing the
+ * predictions and writing the row. All methods are thread safe and cheap
+ * enough to be called for every record; updates are striped with
+ * {@link LongAdder}s, so concurrent workers do not contend.
+ * <p>
+ * Each execution records into a metrics instance of its own, which passes
+ * every update on to its parent. The {@link #global() global} instance is the
+ * parent of all of them; it accumulates over all executions in the workbench
+ * and is published via JMX by {@link BBB_predictorMetricsMBean}. The
+ * throughput history, the slowest molecules and the failure reasons shown in
+ * the {@link BBB_predictorNodeView node view} are only kept per execution.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorMetrics {
+    /** The timed stages apart from the descriptors. */
+    enum Stage {
+        /** Reading a record or an input row, until it is handed to a worker. */
+        READ("Read"),
+        /** Tokenising a record and creating the molecule and other cells. */
+        PARSE("Parse"),
+        /**
+         * Computing the predictions of a molecule, including the descriptors
+         * and cache lookups.
+         */
+        PREDICT("Predict"),
+        /** Writing a row to the output, including the checkpoint. */
+        WRITE("Write");
+
+        private final String m_label;
+
+        private Stage(final String label) {
+            m_label = label;
+        }
+
+        /**
+         * Returns a human readable name.
+         *
+         * @return the name
+         */
+        String label() {
+            return m_label;
+        }
+    }
+
+    /** The counted events. */
+    enum Counter {
+        /** Records and input rows that have been scored. */
+        RECORDS("Records"),
+        /** Records or molecules that could not be read. */
+        BROKEN_RECORDS("BrokenRecords"),
+        /** Records whose predictions were restored from a checkpoint. */
+        RESTORED_RECORDS("RestoredRecords"),
+        /** Molecules with descriptor values found in the descriptor cache. */
+        CACHE_HITS("CacheHits"),
+        /** Molecules looked up in the descriptor cache without success. */
+        CACHE_MISSES("CacheMisses"),
+        /** Molecules already seen earlier in the same execution. */
+        DUPLICATE_HITS("DuplicateHits"),
+        /** Records submitted to the workers but not yet written. */
+        QUEUE_DEPTH("QueueDepth");
+
+        private final String m_label;
+
+        private Counter(final String label) {
+            m_label = label;
+        }
+
+        /**
+         * Returns a human readable name.
+         *
+         * @return the name
+         */
+        String label() {
+            return m_label;
+        }
+    }
+
+    /**
+     * Counts durations in buckets of powers of two nanoseconds.
+     */
+    static final class Timer {
+        private static final int BUCKETS = 64;
+
+        private final Timer m_parent;
+
+        private final LongAdder m_count = new LongAdder();
+
+        private final LongAdder m_nanos = new LongAdder();
+
+        private final LongAdder[] m_buckets = new LongAdder[BUCKETS];
+
+        private Timer(final Timer parent) {
+            m_parent = parent;
+            for (int i = 0; i < BUCKETS; i++) {
+                m_buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Adds a duration.
+         *
+         * @param nanos the duration in nanoseconds
+         */
+        void record(final long nanos) {
+            long n = Math.max(nanos, 0);
+            m_count.increment();
+            m_nanos.add(n);
+            m_buckets[63 - Long.numberOfLeadingZeros(n | 1)].increment();
+            if (m_parent != null) {
+                m_parent.record(n);
+            }
+        }
+
+        /**
+         * Returns the number of durations.
+         *
+         * @return the count
+         */
+        long count() {
+            return m_count.sum();
+        }
+
+        /**
+         * Returns the sum of all durations.
+         *
+         * @return the total in nanoseconds
+         */
+        long totalNanos() {
+            return m_nanos.sum();
+        }
+
+        /**
+         * Returns the mean duration.
+         *
+         * @return the mean in nanoseconds, 0 if nothing has been recorded
+         */
+        double meanNanos() {
+            long count = count();
+            return (count == 0) ? 0 : totalNanos() / (double)count;
+        }
+
+        /**
+         * Returns an estimate of a percentile of the durations, accurate to
+         * a factor of two.
+         *
+         * @param p the percentile, between 0 and 100
+         * @return the upper bound of the bucket containing the percentile in
+         *         nanoseconds, 0 if nothing has been recorded
+         */
+        long percentile(final double p) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = m_buckets[i].sum();
+                total += counts[i];
+            }
+            long rank = Math.max(1, (long)Math.ceil(total * p / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return (i == BUCKETS - 1) ? Long.MAX_VALUE
+                            : (2L << i) - 1;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A molecule that took particularly long to score.
+     */
+    static final class SlowMolecule {
+        /** The molecule's name or row key. */
+        final String name;
+
+        /** The number of atoms, -1 if unknown. */
+        final int atomCount;
+
+        /** The time spent parsing and predicting in nanoseconds. */
+        final long nanos;
+
+        private SlowMolecule(final String name, final int atomCount,
+                final long nanos) {
+            this.name = name;
+            this.atomCount = atomCount;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * The number of rows written per interval. Intervals start at one second
+     * and are doubled whenever the history is full, so it covers executions
+     * of any length with a bounded number of intervals.
+     */
+    private static final class History {
+        private static final int INTERVALS = 240;
+
+        private final long[] m_counts = new long[INTERVALS];
+
+        private long m_intervalNanos = 1000000000L;
+
+        synchronized void add(final long elapsedNanos) {
+            long i = elapsedNanos / m_intervalNanos;
+            while (i >= INTERVALS) {
+                for (int j = 0; j < INTERVALS / 2; j++) {
+                    m_counts[j] = m_counts[2 * j] + m_counts[2 * j + 1];
+                }
+                for (int j = INTERVALS / 2; j < INTERVALS; j++) {
+                    m_counts[j] = 0;
+                }
+                m_intervalNanos *= 2;
+                i = elapsedNanos / m_intervalNanos;
+            }
+            m_counts[(int)i]++;
+        }
+
+        synchronized double[] rates(final long elapsedNanos) {
+            int n = (int)Math.min(INTERVALS,
+                    elapsedNanos / m_intervalNanos + 1);
+            double[] rates = new double[n];
+            for (int i = 0; i < n; i++) {
+                // the last interval has only just begun
+                long length = Math.min(m_intervalNanos,
+                        elapsedNanos - i * m_intervalNanos);
+                rates[i] = (length > 0) ? m_counts[i] * 1e9 / length : 0;
+            }
+            return rates;
+        }
+
+        synchronized long intervalNanos() {
+            return m_intervalNanos;
+        }
+    }
+
+    /** The number of slowest molecules that are kept. */
+    static final int SLOWEST = 10;
+
+    private static final BBB_predictorDescriptor[] DESCRIPTORS =
+            BBB_predictorDescriptor.values();
+
+    private static final BBB_predictorMetrics GLOBAL =
+            new BBB_predictorMetrics(null);
+
+    private final BBB_predictorMetrics m_parent;
+
+    private final long m_created = System.nanoTime();
+
+    private final Timer[] m_stages = new Timer[Stage.values().length];
+
+    private final Timer[] m_descriptors = new Timer[DESCRIPTORS.length];
+
+    private final LongAdder[] m_counters =
+            new LongAdder[Counter.values().length];
+
+    private volatile long m_finished;
+
+    private final History m_history = new History();
+
+    private final List<SlowMolecule> m_slowest = new ArrayList<SlowMolecule>();
+
+    /** The time a molecule must exceed to be among the slowest. */
+    private volatile long m_slowThreshold;
+
+    private final ConcurrentMap<String, LongAdder> m_failures =
+            new ConcurrentHashMap<String, LongAdder>();
+
+    private long m_rateTime = m_created;
+
+    private long m_rateCount;
+
+    private double m_rate;
+
+    /**
+     * Creates new metrics.
+     *
+     * @param parent the metrics that receive all updates of the new ones as
+     *            well, or <code>null</code>
+     */
+    BBB_predictorMetrics(final BBB_predictorMetrics parent) {
+        m_parent = parent;
+        for (Stage s : Stage.values()) {
+            m_stages[s.ordinal()] = new Timer(
+                    (parent != null) ? parent.timer(s) : null);
+        }
+        for (BBB_predictorDescriptor d : DESCRIPTORS) {
+            m_descriptors[d.ordinal()] = new Timer(
+                    (parent != null) ? parent.timer(d) : null);
+        }
+        for (int i = 0; i < m_counters.length; i++) {
+            m_counters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the metrics accumulated over all executions.
+     *
+     * @return the global metrics
+     */
+    static BBB_predictorMetrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Returns the timer of a stage.
+     *
+     * @param stage a stage
+     * @return the timer
+     */
+    Timer timer(final Stage stage) {
+        return m_stages[stage.ordinal()];
+    }
+
+    /**
+     * Returns the timer of a descriptor's computation.
+     *
+     * @param descriptor a descriptor
+     * @return the timer
+     */
+    Timer timer(final BBB_predictorDescriptor descriptor) {
+        return m_descriptors[descriptor.ordinal()];
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param counter the counter
+     * @param delta the value to add, may be negative for gauges
+     */
+    void add(final Counter counter, final long delta) {
+        m_counters[counter.ordinal()].add(delta);
+        if (m_parent != null) {
+            m_parent.add(counter, delta);
+        }
+    }
+
+    /**
+     * Returns a counter's value.
+     *
+     * @param counter a counter
+     * @return the value
+     */
+    long get(final Counter counter) {
+        return m_counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Records that a row has been written to the output. Must be called from
+     * a single thread.
+     *
+     * @param nanos the time spent writing in nanoseconds
+     */
+    void written(final long nanos) {
+        timer(Stage.WRITE).record(nanos);
+        m_history.add(System.nanoTime() - m_created);
+    }
+
+    /**
+     * Records the time it took to score a molecule. Only the
+     * {@link #SLOWEST} slowest molecules are kept.
+     *
+     * @param name the molecule's name or row key
+     * @param atomCount the number of atoms, -1 if unknown
+     * @param nanos the time spent parsing and predicting in nanoseconds
+     */
+    void scored(final String name, final int atomCount, final long nanos) {
+        if (nanos <= m_slowThreshold) {
+            return;
+        }
+        synchronized (m_slowest) {
+            int i = m_slowest.size();
+            while ((i > 0) && (m_slowest.get(i - 1).nanos < nanos)) {
+                i--;
+            }
+            m_slowest.add(i, new SlowMolecule(name, atomCount, nanos));
+            if (m_slowest.size() > SLOWEST) {
+                m_slowest.remove(SLOWEST);
+            }
+            if (m_slowest.size() == SLOWEST) {
+                m_slowThreshold = m_slowest.get(SLOWEST - 1).nanos;
+            }
+        }
+    }
+
+    /**
+     * Returns the slowest molecules.
+     *
+     * @return the molecules, slowest first
+     */
+    List<SlowMolecule> slowest() {
+        synchronized (m_slowest) {
+            return Collections.unmodifiableList(
+                    new ArrayList<SlowMolecule>(m_slowest));
+        }
+    }
+
+    /**
+     * Records a record or molecule that could not be read and counts it as
+     * broken.
+     *
+     * @param ex the reason
+     */
+    void failed(final Exception ex) {
+        add(Counter.BROKEN_RECORDS, 1);
+        String reason = ex.getClass().getSimpleName();
+        LongAdder count = m_failures.get(reason);
+        if (count == null) {
+            LongAdder newCount = new LongAdder();
+            count = m_failures.putIfAbsent(reason, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.increment();
+    }
+
+    /**
+     * Returns the number of failures per reason.
+     *
+     * @return the counts, keyed by the simple class names of the exceptions
+     */
+    Map<String, Long> failures() {
+        Map<String, Long> failures = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> e : m_failures.entrySet()) {
+            failures.put(e.getKey(), e.getValue().sum());
+        }
+        return failures;
+    }
+
+    /**
+     * Returns the number of rows written per second over the course of the
+     * execution.
+     *
+     * @return the rates of consecutive intervals of
+     *         {@link #historyIntervalNanos()}
+     */
+    double[] throughputHistory() {
+        return m_history.rates(elapsedNanos());
+    }
+
+    /**
+     * Returns the length of the intervals of the
+     * {@link #throughputHistory() throughput history}.
+     *
+     * @return the length in nanoseconds
+     */
+    long historyIntervalNanos() {
+        return m_history.intervalNanos();
+    }
+
+    /**
+     * Marks the end of the execution these metrics belong to.
+     */
+    void finish() {
+        m_finished = System.nanoTime();
+    }
+
+    /**
+     * Returns whether the execution has ended.
+     *
+     * @return <code>true</code> if {@link #finish()} has been called
+     */
+    boolean isFinished() {
+        return m_finished != 0;
+    }
+
+    /**
+     * Returns the time since these metrics have been created, or until the
+     * execution has ended.
+     *
+     * @return the time in nanoseconds
+     */
+    long elapsedNanos() {
+        long end = m_finished;
+        return ((end != 0) ? end : System.nanoTime()) - m_created;
+    }
+
+    /**
+     * Returns the number of records scored per second, averaged over the
+     * interval since the previous call, but at least one second.
+     *
+     * @return the throughput
+     */
+    synchronized double throughput() {
+        long now = System.nanoTime();
+        if (now - m_rateTime >= 1000000000L) {
+            long count = get(Counter.RECORDS);
+            m_rate = (count - m_rateCount) * 1e9 / (now - m_rateTime);
+            m_rateTime = now;
+            m_rateCount = count;
+        }
+        return m_rate;
+    }
+}
@@ -0,0 +1,226 @@
+package org.cmdm;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.cmdm.BBB_predictorMetrics.Counter;
+import org.cmdm.BBB_predictorMetrics.Stage;
+import org.cmdm.BBB_predictorMetrics.Timer;
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Publishes the {@link BBB_predictorMetrics#global() global metrics} as a
+ * read-only MBean named <code>org.cmdm:type=BBB_predictor,name=Metrics</code>.
+ * Besides the throughput and the counters, the MBean has the attributes
+ * <code>&lt;stage&gt;Count</code>, <code>&lt;stage&gt;TotalMillis</code>,
+ * <code>&lt;stage&gt;MeanMicros</code>, <code>&lt;stage&gt;P50Micros</code>
+ * and <code>&lt;stage&gt;P99Micros</code> for every stage and descriptor,
+ * e.g. <code>ParseP99Micros</code> or <code>BCUTMeanMicros</code>.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorMetricsMBean implements DynamicMBean {
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(BBB_predictorMetricsMBean.class);
+
+    /** The name under which the MBean is registered. */
+    static final String NAME = "org.cmdm:type=BBB_predictor,name=Metrics";
+
+    private static final String THROUGHPUT = "MoleculesPerSecond";
+
+    private static final String[] TIMER_ATTRIBUTES = {"Count", "TotalMillis",
+        "MeanMicros", "P50Micros", "P99Micros"};
+
+    private final BBB_predictorMetrics m_metrics;
+
+    private final MBeanInfo m_info;
+
+    private BBB_predictorMetricsMBean(final BBB_predictorMetrics metrics) {
+        m_metrics = metrics;
+        List<MBeanAttributeInfo> attributes =
+                new ArrayList<MBeanAttributeInfo>();
+        attributes.add(new MBeanAttributeInfo(THROUGHPUT, "double",
+                "Records scored per second", true, false, false));
+        for (Counter c : Counter.values()) {
+            attributes.add(new MBeanAttributeInfo(c.label(), "long",
+                    c.label(), true, false, false));
+        }
+        for (String timer : timerLabels()) {
+            for (String a : TIMER_ATTRIBUTES) {
+                attributes.add(new MBeanAttributeInfo(timer + a,
+                        "Count".equals(a) ? "long" : "double", timer + " " + a,
+                        true, false, false));
+            }
+        }
+        m_info = new MBeanInfo(getClass().getName(),
+                "Throughput and stage latencies of all BBB_predictor nodes",
+                attributes.toArray(new MBeanAttributeInfo[0]), null,
+                new MBeanOperationInfo[0], null);
+    }
+
+    private static List<String> timerLabels() {
+        List<String> labels = new ArrayList<String>();
+        for (Stage s : Stage.values()) {
+            labels.add(s.label());
+        }
+        for (BBB_predictorDescriptor d : BBB_predictorDescriptor.values()) {
+            labels.add(d.label());
+        }
+        return labels;
+    }
+
+    private Timer timer(final String label) {
+        for (Stage s : Stage.values()) {
+            if (s.label().equals(label)) {
+                return m_metrics.timer(s);
+            }
+        }
+        for (BBB_predictorDescriptor d : BBB_predictorDescriptor.values()) {
+            if (d.label().equals(label)) {
+                return m_metrics.timer(d);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers the MBean for the global metrics with the platform MBean
+     * server. Failures are logged and otherwise ignored.
+     */
+    static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new BBB_predictorMetricsMBean(
+                        BBB_predictorMetrics.global()), name);
+            }
+        } catch (JMException ex) {
+            LOGGER.warn("Could not register metrics MBean: "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Removes the MBean from the platform MBean server.
+     */
+    static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException ex) {
+            LOGGER.debug("Could not unregister metrics MBean: "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getAttribute(final String attribute)
+            throws AttributeNotFoundException {
+        if (THROUGHPUT.equals(attribute)) {
+            return m_metrics.throughput();
+        }
+        for (Counter c : Counter.values()) {
+            if (c.label().equals(attribute)) {
+                return m_metrics.get(c);
+            }
+        }
+        for (String a : TIMER_ATTRIBUTES) {
+            if (attribute.endsWith(a)) {
+                Timer timer = timer(attribute.substring(0,
+                        attribute.length() - a.length()));
+                if (timer != null) {
+                    return timerValue(timer, a);
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static Object timerValue(final Timer timer, final String a) {
+        if ("Count".equals(a)) {
+            return timer.count();
+        } else if ("TotalMillis".equals(a)) {
+            return timer.totalNanos() / 1e6;
+        } else if ("MeanMicros".equals(a)) {
+            return timer.meanNanos() / 1e3;
+        } else if ("P50Micros".equals(a)) {
+            return timer.percentile(50) / 1e3;
+        } else {
+            return timer.percentile(99) / 1e3;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            try {
+                list.add(new Attribute(a, getAttribute(a)));
+            } catch (AttributeNotFoundException ex) {
+                // unknown attributes are left out, as specified
+            }
+        }
+        return list;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAttribute(final Attribute attribute)
+            throws AttributeNotFoundException, InvalidAttributeValueException {
+        throw new AttributeNotFoundException("Attribute "
+                + attribute.getName() + " is read-only");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(final String actionName, final Object[] params,
+            final String[] signature) throws MBeanException,
+            ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName),
+                "No operations");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return m_info;
+    }
+}
@@ -0,0 +1,306 @@
+package org.cmdm;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * A molecule as primitive arrays: elements, charges and implicit hydrogens of
+ * the atoms, the atoms and orders of the bonds and the adjacency in
+ * compressed sparse row form. It holds what {@link BBB_predictorTPSA} and
+ * Mannhold LogP need, so that records parsed by
+ * {@link BBB_predictorCtabParser} can be scored without creating a CDK
+ * molecule at all.
+ * <p>
+ * A graph is filled either directly from the arrays of
+ * {@link BBB_predictorCtabParser}, together with the carbon and hetero atom
+ * counts of its scan, or, for molecules read by CDK or from SMILES, from an
+ * <code>IAtomContainer</code> as it has been read. The arrays grow as needed
+ * and are reused for the next molecule, so a graph must not be shared between
+ * threads. Atoms and bonds have the same indices as in the CDK molecule
+ * created from the same connection table.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorMoleculeGraph {
+    /** Order of aromatic bonds, regardless of their Kekule order. */
+    static final int AROMATIC = 4;
+
+    /** Order of bonds other than single, double, triple or aromatic. */
+    static final int OTHER = 0;
+
+    private int m_atomCount;
+
+    private int m_bondCount;
+
+    private int m_carbonCount;
+
+    private int m_heteroAtomCount;
+
+    private int[] m_atomicNumbers = new int[64];
+
+    private int[] m_charges = new int[64];
+
+    private int[] m_hydrogens = new int[64];
+
+    private int[] m_bondAtoms = new int[128];
+
+    private int[] m_bondOrders = new int[64];
+
+    private int[] m_offsets = new int[65];
+
+    private int[] m_neighbours = new int[128];
+
+    private int[] m_neighbourBonds = new int[128];
+
+    /**
+     * Fills the graph from the arrays of a connection table.
+     *
+     * @param atomCount the number of atoms
+     * @param atomicNumbers the atoms' atomic numbers
+     * @param charges the atoms' formal charges
+     * @param hydrogens the atoms' implicit hydrogen counts
+     * @param bondCount the number of bonds
+     * @param bondAtoms the 0-based atom indices of the bonds, two per bond
+     * @param bondOrders the bonds' orders, 1 to 3
+     * @param carbonCount the number of carbon atoms
+     * @param heteroAtomCount the number of atoms other than carbon and
+     *            hydrogen
+     */
+    void fill(final int atomCount, final int[] atomicNumbers,
+            final int[] charges, final int[] hydrogens, final int bondCount,
+            final int[] bondAtoms, final int[] bondOrders,
+            final int carbonCount, final int heteroAtomCount) {
+        ensureCapacity(atomCount, bondCount);
+        System.arraycopy(atomicNumbers, 0, m_atomicNumbers, 0, atomCount);
+        System.arraycopy(charges, 0, m_charges, 0, atomCount);
+        System.arraycopy(hydrogens, 0, m_hydrogens, 0, atomCount);
+        System.arraycopy(bondAtoms, 0, m_bondAtoms, 0, 2 * bondCount);
+        System.arraycopy(bondOrders, 0, m_bondOrders, 0, bondCount);
+        m_atomCount = atomCount;
+        m_bondCount = bondCount;
+        m_carbonCount = carbonCount;
+        m_heteroAtomCount = heteroAtomCount;
+        buildAdjacency();
+    }
+
+    /**
+     * Builds the graph from a CDK molecule. The carbon and hetero atom counts
+     * are not set.
+     *
+     * @param molecule a molecule
+     * @return <code>false</code> if the molecule has atoms without atomic
+     *         number or formal charge or bonds with more than two atoms, the
+     *         graph must then not be used
+     */
+    boolean load(final IAtomContainer molecule) {
+        int atomCount = molecule.getAtomCount();
+        int bondCount = molecule.getBondCount();
+        ensureCapacity(atomCount, bondCount);
+        for (int i = 0; i < atomCount; i++) {
+            IAtom atom = molecule.getAtom(i);
+            Integer atomicNumber = atom.getAtomicNumber();
+            Integer charge = atom.getFormalCharge();
+            if ((atomicNumber == null) || (charge == null)) {
+                return false;
+            }
+            Integer hydrogens = atom.getImplicitHydrogenCount();
+            m_atomicNumbers[i] = atomicNumber;
+            m_charges[i] = charge;
+            m_hydrogens[i] = (hydrogens != null) ? hydrogens : 0;
+        }
+        for (int i = 0; i < bondCount; i++) {
+            IBond bond = molecule.getBond(i);
+            if (bond.getAtomCount() != 2) {
+                return false;
+            }
+            int a = molecule.getAtomNumber(bond.getAtom(0));
+            int b = molecule.getAtomNumber(bond.getAtom(1));
+            if ((a < 0) || (b < 0)) {
+                return false;
+            }
+            m_bondAtoms[2 * i] = a;
+            m_bondAtoms[2 * i + 1] = b;
+            m_bondOrders[i] = order(bond);
+        }
+        m_atomCount = atomCount;
+        m_bondCount = bondCount;
+        m_carbonCount = -1;
+        m_heteroAtomCount = -1;
+        buildAdjacency();
+        return true;
+    }
+
+    private static int order(final IBond bond) {
+        if (bond.getFlag(CDKConstants.ISAROMATIC)) {
+            return AROMATIC;
+        } else if (bond.getOrder() == IBond.Order.SINGLE) {
+            return 1;
+        } else if (bond.getOrder() == IBond.Order.DOUBLE) {
+            return 2;
+        } else if (bond.getOrder() == IBond.Order.TRIPLE) {
+            return 3;
+        }
+        return OTHER;
+    }
+
+    private void buildAdjacency() {
+        int n = m_atomCount;
+        int[] offsets = m_offsets;
+        for (int i = 0; i <= n; i++) {
+            offsets[i] = 0;
+        }
+        for (int i = 0; i < 2 * m_bondCount; i++) {
+            offsets[m_bondAtoms[i] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        // offsets[i] is used as the insertion point of atom i and ends up
+        // at the start of atom i + 1, hence the shift afterwards
+        for (int k = 0; k < m_bondCount; k++) {
+            int a = m_bondAtoms[2 * k];
+            int b = m_bondAtoms[2 * k + 1];
+            m_neighbours[offsets[a]] = b;
+            m_neighbourBonds[offsets[a]++] = k;
+            m_neighbours[offsets[b]] = a;
+            m_neighbourBonds[offsets[b]++] = k;
+        }
+        for (int i = n; i > 0; i--) {
+            offsets[i] = offsets[i - 1];
+        }
+        offsets[0] = 0;
+    }
+
+    private void ensureCapacity(final int atomCount, final int bondCount) {
+        if (m_atomicNumbers.length < atomCount) {
+            int size = Math.max(atomCount, m_atomicNumbers.length * 2);
+            m_atomicNumbers = new int[size];
+            m_charges = new int[size];
+            m_hydrogens = new int[size];
+            m_offsets = new int[size + 1];
+        }
+        if (m_bondOrders.length < bondCount) {
+            int size = Math.max(bondCount, m_bondOrders.length * 2);
+            m_bondAtoms = new int[2 * size];
+            m_bondOrders = new int[size];
+            m_neighbours = new int[2 * size];
+            m_neighbourBonds = new int[2 * size];
+        }
+    }
+
+    /**
+     * Returns the number of atoms.
+     *
+     * @return the number of atoms
+     */
+    int atomCount() {
+        return m_atomCount;
+    }
+
+    /**
+     * Returns the number of bonds.
+     *
+     * @return the number of bonds
+     */
+    int bondCount() {
+        return m_bondCount;
+    }
+
+    /**
+     * Returns the number of carbon atoms counted by the parser.
+     *
+     * @return the number of carbon atoms, -1 if the graph has been loaded
+     *         from a CDK molecule
+     */
+    int carbonCount() {
+        return m_carbonCount;
+    }
+
+    /**
+     * Returns the number of atoms other than carbon and hydrogen counted by
+     * the parser.
+     *
+     * @return the number of hetero atoms, -1 if the graph has been loaded
+     *         from a CDK molecule
+     */
+    int heteroAtomCount() {
+        return m_heteroAtomCount;
+    }
+
+    /**
+     * Returns an atom's atomic number.
+     *
+     * @param atom the atom's index
+     * @return the atomic number
+     */
+    int atomicNumber(final int atom) {
+        return m_atomicNumbers[atom];
+    }
+
+    /**
+     * Returns an atom's formal charge.
+     *
+     * @param atom the atom's index
+     * @return the charge
+     */
+    int charge(final int atom) {
+        return m_charges[atom];
+    }
+
+    /**
+     * Returns an atom's number of implicit hydrogens.
+     *
+     * @param atom the atom's index
+     * @return the number of implicit hydrogens
+     */
+    int hydrogens(final int atom) {
+        return m_hydrogens[atom];
+    }
+
+    /**
+     * Returns a bond's order.
+     *
+     * @param bond the bond's index
+     * @return 1 to 3, {@link #AROMATIC} or {@link #OTHER}
+     */
+    int bondOrder(final int bond) {
+        return m_bondOrders[bond];
+    }
+
+    /**
+     * Returns the position of an atom's first neighbour for
+     * {@link #neighbour(int)} and {@link #neighbourBond(int)}; its neighbours
+     * are at the positions up to, excluding, the first position of the next
+     * atom.
+     *
+     * @param atom the atom's index, up to the number of atoms
+     * @return the position
+     */
+    int firstNeighbour(final int atom) {
+        return m_offsets[atom];
+    }
+
+    /**
+     * Returns the neighbour at a position.
+     *
+     * @param position a position between {@link #firstNeighbour(int)} of an
+     *            atom and of the next atom
+     * @return the neighbour's index
+     */
+    int neighbour(final int position) {
+        return m_neighbours[position];
+    }
+
+    /**
+     * Returns the bond to the neighbour at a position.
+     *
+     * @param position a position between {@link #firstNeighbour(int)} of an
+     *            atom and of the next atom
+     * @return the bond's index
+     */
+    int neighbourBond(final int position) {
+        return m_neighbourBonds[position];
+    }
+}
@@ -23,6 +23,7 @@ import javax.swing.DefaultListCellRenderer;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
@@ -43,6 +44,9 @@ import org.knime.base.node.util.BufferedFileReader;
 //import org.knime.chem.base.node.io.sdf.SDFReaderSettings.Property;
 import org.cmdm.BBB_predictorNodeSettings.Property;
 import org.knime.chem.base.util.sdf.SDFAnalyzer;
+import org.knime.chem.types.MolValue;
+import org.knime.chem.types.SdfValue;
+import org.knime.chem.types.SmilesValue;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.node.InvalidSettingsException;
@@ -51,6 +55,7 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.NotConfigurableException;
+import org.knime.core.node.util.ColumnSelectionComboxBox;
 import org.knime.core.node.util.MultipleURLList;
 import org.knime.core.util.DuplicateChecker;
 import org.knime.core.util.DuplicateKeyException;
@@ -161,42 +166,51 @@ public class BBB_predictorNodeDialog extends NodeDialogPane {
 	    }
 	
 	    // read from all locations
+	    boolean useIndex = m_useRecordIndex.isSelected();
 	    int count = 0;
 	    long globalRead = 0;
 	    outer: for (URL url : urls) {
 	        try {
+	            BBB_predictorSDFIndex index = useIndex
+	                    ? BBB_predictorDefaultSDFReader.recordIndex(url) : null;
+	            m_scanProgress.setVisible(true);
+	            if (index != null) {
+	                // the record boundaries are known, no need to search them
+	                BBB_predictorMappedSDFFile mapped = index.openFile();
+	                try {
+	                    for (long i = 0; i < index.size(); i++) {
+	                        if (Thread.currentThread().isInterrupted()) {
+	                            break outer;
+	                        }
+	                        if (analyze(index.decode(mapped, i), propertyTypes,
+	                                molIds)) {
+	                            count++;
+	                            publish(count, globalRead + index.end(i), max,
+	                                    propertyTypes);
+	                        }
+	                    }
+	                    globalRead += mapped.size();
+	                } finally {
+	                    mapped.close();
+	                }
+	                continue;
+	            }
+
 	            BufferedFileReader in =
 	                    BufferedFileReader.createNewReader(url);
-	            m_scanProgress.setVisible(true);
-	
+
 	            SDFAnalyzer analyzer = new SDFAnalyzer(in);
-	
+
 	            String mol;
 	            while (((mol = analyzer.nextMolecule()) != null)) {
 	                if (Thread.currentThread().isInterrupted()) {
 	                    break outer;
 	                }
-	                try {
-	                    synchronized (propertyTypes) {
-	                        String molTitle = BBB_predictorDefaultSDFReader.analyzeAndUpdateProperties(mol, propertyTypes);
-	                        try {
-	                            molIds.addKey(molTitle);
-	                        } catch (DuplicateKeyException ex) {
-	                            m_molIdsAreUnique = false;
-	                        }
-	                    }
+	                if (analyze(mol, propertyTypes, molIds)) {
 	                    count++;
-	
-	                    publish(new Object[]{
-	                            (int)Math.round(100.0
-	                                    * (globalRead + in
-	                                            .getNumberOfBytesRead())
-	                                    / max),
-	                            "Analyzed " + count + " molecules",
-	                            propertyTypes});
-	                } catch (Exception ex) {
-	                    LOGGER.error(ex.getMessage(), ex);
-	                    continue;
+	                    publish(count,
+	                            globalRead + in.getNumberOfBytesRead(), max,
+	                            propertyTypes);
 	                }
 	            }
 	            globalRead += in.getNumberOfBytesRead();
@@ -219,6 +233,34 @@ public class BBB_predictorNodeDialog extends NodeDialogPane {
 	    }
 	    return propertyTypes;
 	}
+
+	/**
+	 * @return <code>false</code> if the record could not be analyzed
+	 */
+	private boolean analyze(final String mol,
+	        final Map<String, Class<?>> propertyTypes,
+	        final DuplicateChecker molIds) {
+	    try {
+	        synchronized (propertyTypes) {
+	            String molTitle = BBB_predictorDefaultSDFReader.analyzeAndUpdateProperties(mol, propertyTypes);
+	            try {
+	                molIds.addKey(molTitle);
+	            } catch (DuplicateKeyException ex) {
+	                m_molIdsAreUnique = false;
+	            }
+	        }
+	        return true;
+	    } catch (Exception ex) {
+	        LOGGER.error(ex.getMessage(), ex);
+	        return false;
+	    }
+	}
+
+	private void publish(final int count, final long read, final long max,
+	        final Map<String, Class<?>> propertyTypes) {
+	    publish(new Object[]{(int)Math.round(100.0 * read / max),
+	            "Analyzed " + count + " molecules", propertyTypes});
+	}
 	}
 	
 	private static class PropertiesTableModel extends AbstractTableModel {
@@ -395,6 +437,21 @@ public class BBB_predictorNodeDialog extends NodeDialogPane {
 	
 	private final JCheckBox m_isLogPSreg = new JCheckBox("Predict LogPS Regression");
 	
+	private final JCheckBox m_useDescriptorCache = new JCheckBox("Use persistent descriptor cache");
+	
+	private final JCheckBox m_deduplicate = new JCheckBox("Score duplicate structures only once");
+	
+	private final JCheckBox m_useRecordIndex = new JCheckBox("Keep record index files for local SDF files");
+	
+	private final JCheckBox m_useCheckpoints = new JCheckBox("Resume cancelled executions from checkpoints");
+	
+	@SuppressWarnings("unchecked")
+	private final ColumnSelectionComboxBox m_colName = new ColumnSelectionComboxBox(
+	    SdfValue.class, MolValue.class, SmilesValue.class);
+	
+	private final JSpinner m_threads = new JSpinner(new SpinnerNumberModel(
+	    BBB_predictorNodeSettings.DEFAULT_THREADS, 1, Integer.MAX_VALUE, 1));
+	
 	private final JCheckBox m_addSourceLocationColumn = new JCheckBox(
 	    "Add column with source location");
 	
@@ -617,6 +674,19 @@ public class BBB_predictorNodeDialog extends NodeDialogPane {
 	c.weighty = 0.5;
 	c.gridwidth = 2;
 	p.add(m_urls, c);
+
+	JPanel colPanel = new JPanel(new GridBagLayout());
+	GridBagConstraints c3 = new GridBagConstraints();
+	c3.insets = new Insets(0, 0, 0, 4);
+	colPanel.add(new JLabel("Molecule column (if an input table is connected)"), c3);
+	colPanel.add(m_colName, c3);
+
+	c.gridy = 1;
+	c.fill = GridBagConstraints.NONE;
+	c.weighty = 0;
+	c.insets = new Insets(4, 0, 4, 0);
+	p.add(colPanel, c);
+	c.insets = new Insets(0, 0, 0, 0);
 	
 //	JPanel p2 = new JPanel(new GridBagLayout());
 //	GridBagConstraints c2 = new GridBagConstraints();
@@ -673,6 +743,30 @@ public class BBB_predictorNodeDialog extends NodeDialogPane {
 	c.gridy++;
 	p.add(m_isLogPSreg, c);
 
+	JPanel threadsPanel = new JPanel(new GridBagLayout());
+	GridBagConstraints c2 = new GridBagConstraints();
+	c2.insets = new Insets(0, 0, 0, 4);
+	threadsPanel.add(new JLabel("Number of threads"), c2);
+	((JSpinner.NumberEditor)m_threads.getEditor()).getTextField().setColumns(4);
+	threadsPanel.add(m_threads, c2);
+
+	c.gridy++;
+	c.insets = new Insets(4, 30, 0, 0);
+	p.add(threadsPanel, c);
+
+	c.gridy++;
+	c.insets = new Insets(0, 30, 0, 0);
+	p.add(m_useDescriptorCache, c);
+
+	c.gridy++;
+	p.add(m_deduplicate, c);
+
+	c.gridy++;
+	p.add(m_useRecordIndex, c);
+
+	c.gridy++;
+	p.add(m_useCheckpoints, c);
+
 	}
 	
 	/**
@@ -700,6 +794,24 @@ public class BBB_predictorNodeDialog extends NodeDialogPane {
 	m_isLogPSclassify.setSelected(m_settings.isLogPSclassify());
 	m_isLogBBreg.setSelected(m_settings.isLogBBreg());
 	m_isLogPSreg.setSelected(m_settings.isLogPSreg());
+	m_threads.setValue(m_settings.threads());
+	m_useDescriptorCache.setSelected(m_settings.useDescriptorCache());
+	m_deduplicate.setSelected(m_settings.deduplicate());
+	m_useRecordIndex.setSelected(m_settings.useRecordIndex());
+	m_useCheckpoints.setSelected(m_settings.useCheckpoints());
+
+	// the files are only read if no input table is connected
+	boolean hasInput = false;
+	if ((specs.length > 0) && (specs[0] != null)) {
+	    try {
+	        m_colName.update(specs[0], m_settings.colName());
+	        hasInput = true;
+	    } catch (NotConfigurableException ex) {
+	        // no compatible column, the input table cannot be scored
+	    }
+	}
+	m_colName.setEnabled(hasInput);
+	m_urls.setEnabled(!hasInput);
 	
 	m_propsModel.update(m_settings.properties());
 	}
@@ -736,6 +848,14 @@ public class BBB_predictorNodeDialog extends NodeDialogPane {
 	m_settings.isLogPSclassify(m_isLogPSclassify.isSelected());
 	m_settings.isLogBBreg(m_isLogBBreg.isSelected());
 	m_settings.isLogPSreg(m_isLogPSreg.isSelected());
+	m_settings.threads((Integer)m_threads.getValue());
+	m_settings.useDescriptorCache(m_useDescriptorCache.isSelected());
+	m_settings.deduplicate(m_deduplicate.isSelected());
+	m_settings.useRecordIndex(m_useRecordIndex.isSelected());
+	m_settings.useCheckpoints(m_useCheckpoints.isSelected());
+	if (m_colName.isEnabled()) {
+	    m_settings.colName(m_colName.getSelectedColumn());
+	}
 	
 	m_settings.clearProperties();
 	for (BBB_predictorNodeSettings.Property p : m_propsModel.getProperties()) {
@@ -33,7 +33,7 @@ public class BBB_predictorNodeFactory extends ContextAwareNodeFactory<BBB_predic
      */
     @Override
     public NodeView<BBB_predictorNodeModel> createNodeView(final int viewIndex,final BBB_predictorNodeModel nodeModel) {
-    	return null;
+    	return new BBB_predictorNodeView(nodeModel);
     }
     
     /**
@@ -41,7 +41,7 @@ public class BBB_predictorNodeFactory extends ContextAwareNodeFactory<BBB_predic
      */
     @Override
     public int getNrNodeViews() {
-        return 0;
+        return 1;
     }
 
 
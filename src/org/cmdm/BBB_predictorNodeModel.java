@@ -2,41 +2,47 @@ package org.cmdm;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
+import java.net.URL;
 
+import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
-import java.util.ArrayList;
+import java.util.concurrent.Callable;
 
 
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.append.AppendedColumnRow;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.NodeCreationContext;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
-import org.knime.core.node.BufferedDataContainer;
-import org.knime.core.data.DataColumnSpecCreator;
-import org.knime.core.data.def.IntCell;
-import org.knime.core.data.def.DoubleCell;
-import org.knime.core.data.DataColumnSpec;
-import org.knime.core.data.DataCell;
-import org.knime.core.data.DataRow;
-import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.port.PortType;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.DataTableRowInput;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 import org.knime.core.data.def.DefaultRow;
-
-import org.openscience.cdk.io.iterator.IteratingSDFReader;
-import org.openscience.cdk.DefaultChemObjectBuilder;
-import org.openscience.cdk.interfaces.IAtomContainer;
-import org.openscience.cdk.qsar.descriptors.molecular.ALOGPDescriptor;
-import org.openscience.cdk.qsar.descriptors.molecular.TPSADescriptor;
-import org.openscience.cdk.qsar.descriptors.molecular.BCUTDescriptor;
-import org.openscience.cdk.qsar.descriptors.molecular.MannholdLogPDescriptor;
-import org.openscience.cdk.qsar.IMolecularDescriptor;
+import org.cmdm.BBB_predictorDefaultSDFReader.Record;
+import org.cmdm.BBB_predictorDefaultSDFReader.RecordHandler;
+import org.cmdm.BBB_predictorMetrics.Counter;
+import org.cmdm.BBB_predictorMetrics.Stage;
+import org.cmdm.BBB_predictorNodeSettings.Property;
+import org.cmdm.BBB_predictorOrderedExecutor.ResultHandler;
+import org.cmdm.BBB_predictorScorer.Result;
 
 /**
  * This is the model implementation of BBB_predictor.
@@ -45,15 +51,27 @@ import org.openscience.cdk.qsar.IMolecularDescriptor;
  * @author Yi Hsiao
  */
 public class BBB_predictorNodeModel extends NodeModel {
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(BBB_predictorNodeModel.class);
+
 	private final BBB_predictorNodeSettings m_settings = new BBB_predictorNodeSettings();
 	private final BBB_predictorDefaultSDFReader m_sdfReader = new BBB_predictorDefaultSDFReader(m_settings);
+
+	/** The metrics of the current or last execution, shown in the view. */
+	private volatile BBB_predictorMetrics m_metrics;
+
+	/**
+	 * Whether the last configuration had an input table, the records are
+	 * otherwise read from the file.
+	 */
+	private volatile boolean m_hasInputTable;
     
     /**
      * Constructor for the node model.
      */
     public BBB_predictorNodeModel() {
-        // TODO: Specify the amount of input and output ports needed.
-        super(0, 2);
+        // the optional input table replaces the files as source of molecules
+        super(new PortType[]{BufferedDataTable.TYPE_OPTIONAL},
+                new PortType[]{BufferedDataTable.TYPE, BufferedDataTable.TYPE});
     }
     
     BBB_predictorNodeModel(final NodeCreationContext context) {
@@ -68,86 +86,343 @@ public class BBB_predictorNodeModel extends NodeModel {
     @Override
     protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
             final ExecutionContext exec) throws Exception {
-        // TODO: Return a BufferedDataTable for each output port 
-    	BufferedDataTable[] result = m_sdfReader.execute(exec);
-        String warningMessage = m_sdfReader.clearWarningMessage();
-        if (warningMessage != null) {
-            setWarningMessage(warningMessage);
+        if (inData[0] != null) {
+            DataTableSpec inSpec = inData[0].getDataTableSpec();
+            BufferedDataTableRowOutput output =
+                    new BufferedDataTableRowOutput(exec.createDataContainer(
+                            createTableSpec(inSpec), false, 0));
+            BufferedDataTableRowOutput brokenOutput =
+                    new BufferedDataTableRowOutput(exec.createDataContainer(
+                            m_sdfReader.createBrokenSpec(), false, 0));
+            scoreTable(new DataTableRowInput(inData[0]), inData[0].size(),
+                    output, brokenOutput, exec);
+            return new BufferedDataTable[]{output.getDataTable(),
+                    brokenOutput.getDataTable()};
+        }
+        ExecutionMonitor readExec = m_settings.extractAllProperties()
+                ? exec.createSubProgress(0.5) : exec;
+        BBB_predictorScorer scorer = createScorer(exec);
+        BufferedDataTableRowOutput output = new BufferedDataTableRowOutput(
+                exec.createDataContainer(scorer.createSpec(), false, 0));
+        BufferedDataTableRowOutput brokenOutput =
+                new BufferedDataTableRowOutput(exec.createDataContainer(
+                        m_sdfReader.createBrokenSpec(), false, 0));
+        score(scorer, output, brokenOutput, readExec, exec);
+        return new BufferedDataTable[]{output.getDataTable(),
+                brokenOutput.getDataTable()};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StreamableOperator createStreamableOperator(
+            final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
+            throws InvalidSettingsException {
+        return new StreamableOperator() {
+            @Override
+            public void runFinal(final PortInput[] inputs,
+                    final PortOutput[] outputs, final ExecutionContext exec)
+                    throws Exception {
+                // rows are pushed downstream as soon as they are scored, the
+                // ordered executor's window and the blocking push bound the
+                // number of records in memory
+                if (inputs[0] != null) {
+                    scoreTable((RowInput)inputs[0], -1,
+                            (RowOutput)outputs[0], (RowOutput)outputs[1],
+                            exec);
+                    return;
+                }
+                ExecutionMonitor readExec = m_settings.extractAllProperties()
+                        ? exec.createSubProgress(0.5) : exec;
+                score(createScorer(exec), (RowOutput)outputs[0],
+                        (RowOutput)outputs[1], readExec, exec);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputPortRole[] getInputPortRoles() {
+        return new InputPortRole[]{InputPortRole.DISTRIBUTED_STREAMABLE};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputPortRole[] getOutputPortRoles() {
+        if (m_hasInputTable) {
+            // rows of the input table are scored independently and keep
+            // their keys, so each partition can write its own part of the
+            // outputs
+            return new OutputPortRole[]{OutputPortRole.DISTRIBUTED,
+                    OutputPortRole.DISTRIBUTED};
+        }
+        // records read from the file are numbered in file order, only a
+        // single instance can produce them
+        return new OutputPortRole[]{OutputPortRole.NONDISTRIBUTED,
+                OutputPortRole.NONDISTRIBUTED};
+    }
+
+    /** An input row together with its predictions. */
+    private static final class TableResult {
+        final DataRow row;
+
+        final DataRow brokenRow;
+
+        TableResult(final DataRow row, final DataRow brokenRow) {
+            this.row = row;
+            this.brokenRow = brokenRow;
+        }
+    }
+
+    /**
+     * Appends the predictions for the molecules in the selected column to
+     * the rows of an input table. Both outputs are closed afterwards.
+     *
+     * @param rowCount the number of input rows or -1 if unknown
+     */
+    private void scoreTable(final RowInput input, final long rowCount,
+            final RowOutput output, final RowOutput brokenOutput,
+            final ExecutionContext exec) throws Exception {
+        final int colIndex =
+                input.getDataTableSpec().findColumnIndex(m_settings.colName());
+        if (colIndex < 0) {
+            throw new InvalidSettingsException("Column '"
+                    + m_settings.colName() + "' does not exist in input table");
+        }
+        final BBB_predictorMetrics metrics =
+                new BBB_predictorMetrics(BBB_predictorMetrics.global());
+        m_metrics = metrics;
+        final BBB_predictorScorer scorer =
+                new BBB_predictorScorer(m_settings, m_sdfReader, metrics);
+        LOGGER.debug("Computing descriptors " + scorer.plan());
+        final long[] brokenCount = new long[1];
+        final long[] queued = new long[1];
+        final BBB_predictorFlightRecorder.Batch batch =
+                new BBB_predictorFlightRecorder.Batch();
+        final BBB_predictorOrderedExecutor<TableResult> executor =
+                new BBB_predictorOrderedExecutor<TableResult>(
+                        m_settings.threads(),
+                        new ResultHandler<TableResult>() {
+                            @Override
+                            public void handle(final TableResult result)
+                                    throws InterruptedException {
+                                long start = System.nanoTime();
+                                queued[0]--;
+                                metrics.add(Counter.QUEUE_DEPTH, -1);
+                                output.push(result.row);
+                                if (result.brokenRow != null) {
+                                    brokenOutput.push(result.brokenRow);
+                                    brokenCount[0]++;
+                                }
+                                long nanos = System.nanoTime() - start;
+                                metrics.written(nanos);
+                                batch.written(result.brokenRow != null, nanos);
+                            }
+                        });
+        try {
+            long index = 0;
+            DataRow row;
+            long readStart = System.nanoTime();
+            while ((row = input.poll()) != null) {
+                metrics.timer(Stage.READ).record(
+                        System.nanoTime() - readStart);
+                exec.checkCanceled();
+                final DataRow inputRow = row;
+                queued[0]++;
+                metrics.add(Counter.QUEUE_DEPTH, 1);
+                executor.submit(new Callable<TableResult>() {
+                    @Override
+                    public TableResult call() {
+                        Result result = scorer.score(inputRow.getKey(),
+                                inputRow.getCell(colIndex));
+                        return new TableResult(new AppendedColumnRow(
+                                inputRow, result.cells), result.brokenRow);
+                    }
+                });
+                index++;
+                if (rowCount > 0) {
+                    exec.setProgress(index / (double)rowCount, "Scored "
+                            + index + " molecules");
+                } else {
+                    exec.setMessage("Scored " + index + " molecules");
+                }
+                readStart = System.nanoTime();
+            }
+            executor.finish(exec);
+        } finally {
+            executor.shutdown();
+            metrics.add(Counter.QUEUE_DEPTH, -queued[0]);
+            metrics.finish();
+            batch.flush();
+            input.close();
+        }
+        logStatistics(scorer);
+
+        output.close();
+        brokenOutput.close();
+        if (brokenCount[0] > 0) {
+            setWarningMessage("Failed to read " + brokenCount[0]
+                    + " molecule(s)");
+        }
+    }
+
+    /**
+     * Creates the spec of the first output table if the input port is
+     * connected.
+     */
+    private DataTableSpec createTableSpec(final DataTableSpec inSpec) {
+        return new DataTableSpec(inSpec,
+                BBB_predictorScorer.createPredictionSpec(m_settings));
+    }
+
+    /**
+     * Determines the properties to extract and creates the scorer for this
+     * execution. If all properties are extracted, the input is scanned for
+     * them first, which takes the first half of the progress.
+     */
+    private BBB_predictorScorer createScorer(final ExecutionMonitor exec)
+            throws Exception {
+        final Collection<Property> properties;
+        if (m_settings.extractAllProperties()) {
+            properties = m_sdfReader.determineProperties(exec.createSubProgress(0.5));
+        } else {
+            properties = m_settings.properties();
+        }
+        m_metrics = new BBB_predictorMetrics(BBB_predictorMetrics.global());
+        BBB_predictorScorer scorer = new BBB_predictorScorer(m_settings,
+                m_sdfReader, properties, m_metrics);
+        LOGGER.debug("Computing descriptors " + scorer.plan());
+        return scorer;
+    }
+
+    /**
+     * Reads, scores and writes all records. Both outputs are closed
+     * afterwards.
+     */
+    private void score(final BBB_predictorScorer scorer,
+            final RowOutput output, final RowOutput brokenOutput,
+            final ExecutionMonitor readExec, final ExecutionMonitor exec)
+            throws Exception {
+        final long[] brokenCount = new long[1];
+        final long[] queued = new long[1];
+        final BBB_predictorFlightRecorder.Batch batch =
+                new BBB_predictorFlightRecorder.Batch();
+        final BBB_predictorMetrics metrics = scorer.metrics();
+        final BBB_predictorCheckpoint checkpoint = m_settings.useCheckpoints()
+                ? BBB_predictorCheckpoint.open(m_settings,
+                        scorer.predictionCount()) : null;
+        if ((checkpoint != null) && (checkpoint.committed() > 0)) {
+            LOGGER.info("Resuming from checkpoint, predictions of "
+                    + checkpoint.committed() + " record(s) are restored");
+        }
+        // records are scored concurrently, but the results are written in
+        // input order so that the row keys stay the same as in serial mode
+        final BBB_predictorOrderedExecutor<Result> executor =
+                new BBB_predictorOrderedExecutor<Result>(m_settings.threads(),
+                        new ResultHandler<Result>() {
+                            private long m_rowCount = 0;
+
+                            @Override
+                            public void handle(final Result result)
+                                    throws InterruptedException, IOException {
+                                long start = System.nanoTime();
+                                queued[0]--;
+                                metrics.add(Counter.QUEUE_DEPTH, -1);
+                                if (checkpoint != null) {
+                                    checkpoint.append(
+                                            scorer.predictionValues(result));
+                                }
+                                if (result.cells == null) {
+                                    brokenOutput.push(result.brokenRow);
+                                    brokenCount[0]++;
+                                } else {
+                                    output.push(new DefaultRow("Row"
+                                            + m_rowCount, result.cells));
+                                    m_rowCount++;
+                                }
+                                long nanos = System.nanoTime() - start;
+                                metrics.written(nanos);
+                                batch.written(result.cells == null, nanos);
+                            }
+                        });
+        try {
+            // each record is tokenised, parsed, scored and written in one go,
+            // there is no intermediate table holding the read molecules
+            m_sdfReader.read(readExec, new RecordHandler() {
+                private long m_readStart = System.nanoTime();
+
+                @Override
+                public void handle(final long index, final Record record,
+                        final URL source) throws Exception {
+                    metrics.timer(Stage.READ).record(
+                            System.nanoTime() - m_readStart);
+                    queued[0]++;
+                    metrics.add(Counter.QUEUE_DEPTH, 1);
+                    executor.submit(new Callable<Result>() {
+                        @Override
+                        public Result call() {
+                            // memory-mapped records are decoded here, on the
+                            // worker thread
+                            double[] restored = (checkpoint != null)
+                                    ? checkpoint.restore(index) : null;
+                            return scorer.score(index, record.text(), source,
+                                    restored);
+                        }
+                    });
+                    m_readStart = System.nanoTime();
+                }
+            });
+            executor.finish(exec);
+            if (checkpoint != null) {
+                checkpoint.delete();
+            }
+        } catch (Exception ex) {
+            if (checkpoint != null) {
+                // keep what has been written so far for the next execution
+                checkpoint.close();
+            }
+            throw ex;
+        } finally {
+            executor.shutdown();
+            metrics.add(Counter.QUEUE_DEPTH, -queued[0]);
+            metrics.finish();
+            batch.flush();
+        }
+        logStatistics(scorer);
+
+        output.close();
+        brokenOutput.close();
+        if (brokenCount[0] > 0) {
+            setWarningMessage("Failed to parse " + brokenCount[0]
+                    + " record(s)");
+        }
+    }
+
+    private static void logStatistics(final BBB_predictorScorer scorer) {
+        for (BBB_predictorDescriptor d : scorer.plan().required()) {
+            LOGGER.info("Computed " + d + " " + scorer.computations(d)
+                    + " times, avoided " + scorer.avoidedComputations(d)
+                    + " computations");
+        }
+        if (scorer.readerFallbacks() > 0) {
+            LOGGER.info(scorer.readerFallbacks() + " record(s) needed CDK's"
+                    + " SDF reader");
+        }
+        if (scorer.cache() != null) {
+            LOGGER.info("Descriptor cache " + scorer.cache());
+        }
+        BBB_predictorDuplicateTable duplicates = scorer.duplicates();
+        if ((duplicates != null) && (duplicates.lookups() > 0)) {
+            LOGGER.info("Found " + duplicates.duplicates() + " duplicates in "
+                    + duplicates.lookups() + " molecules (dedup ratio "
+                    + String.format("%.3f", duplicates.duplicates()
+                            / (double)duplicates.lookups()) + ")");
         }
-        BufferedDataTable table = result[0];
-        long rowCount = table.size();
-        List<DataColumnSpec> cols = new ArrayList<DataColumnSpec>();
-        cols.add(table.getDataTableSpec().getColumnSpec(0));
-        int colCount = 1;
-        if(m_settings.isLogBBclassify()){
-        	cols.add(new DataColumnSpecCreator("LogBBclassify", IntCell.TYPE).createSpec());
-        	colCount++;
-        }
-        if(m_settings.isLogPSclassify()){
-        	cols.add(new DataColumnSpecCreator("LogPSclassify", IntCell.TYPE).createSpec());
-        	colCount++;
-        }
-        if(m_settings.isLogBBreg()){
-        	cols.add(new DataColumnSpecCreator("LogBBreg", DoubleCell.TYPE).createSpec());
-        	colCount++;
-        }
-        if(m_settings.isLogPSreg()){
-        	cols.add(new DataColumnSpecCreator("LogPSreg", IntCell.TYPE).createSpec());
-        	colCount++;
-        }
-        DataTableSpec spec = new DataTableSpec(cols.toArray(new DataColumnSpec[cols.size()]));
-        BufferedDataContainer buf = exec.createDataContainer(spec);
-        CloseableRowIterator iter = table.iterator();
-	        for (int j = 0; j < rowCount; j++) {
-	        	DataRow mol = iter.next();
-	            DataCell[] cells = new DataCell[colCount];
-	            cells[0] = mol.getCell(0);
-	            int i = 1;
-	            String sdf = mol.getCell(0).toString();
-	            IteratingSDFReader reader = new IteratingSDFReader(
-	            		new ByteArrayInputStream(sdf.getBytes("UTF-8")), DefaultChemObjectBuilder.getInstance());
-	            IAtomContainer molecule = (IAtomContainer)reader.next();
-				IMolecularDescriptor ALOGP = new ALOGPDescriptor();
-				IMolecularDescriptor TPSA = new TPSADescriptor();
-				IMolecularDescriptor BCUT = new BCUTDescriptor();
-				IMolecularDescriptor MANNHOLDLOGP = new MannholdLogPDescriptor();
-				Double alogp = Double.parseDouble(ALOGP.calculate(molecule).getValue().toString().split(",")[0]);
-				Double tpsa = Double.parseDouble(TPSA.calculate(molecule).getValue().toString());
-				Double bcuts = Double.parseDouble(BCUT.calculate(molecule).getValue().toString().split(",")[0]);
-				Double MannholdLOGP = Double.parseDouble(MANNHOLDLOGP.calculate(molecule).getValue().toString());
-	            if(m_settings.isLogBBclassify()){
-	            	cells[i] = new IntCell(1);
-	            	i++;
-	            }
-	            if(m_settings.isLogPSclassify()){
-	            	if(alogp<=-0.4263){
-	    				if(bcuts<=11.9){
-	    	            	cells[i] = new IntCell(1);
-	    				}else{
-	    	            	cells[i] = new IntCell(-1);
-	    				}
-	    			}else{
-	    				if(tpsa<=150.54553){
-	    	            	cells[i] = new IntCell(1);
-	    				}else{
-	    	            	cells[i] = new IntCell(-1);
-	    				}
-	    			}
-	            	i++;
-	            }
-	            if(m_settings.isLogBBreg()){
-	            	cells[i] = new DoubleCell(0.05-0.011*tpsa+0.19*MannholdLOGP);
-	            	i++;
-	            }
-	            if(m_settings.isLogPSreg()){
-	            	cells[i] = new IntCell(1);
-	            }
-	            DataRow row = new DefaultRow(new String("Row" + j), cells);
-	            buf.addRowToTable(row);
-	        }
-	        buf.close();
-	        result[0] = buf.getTable();
-	        return result;
     }
 
     /**
@@ -155,7 +430,17 @@ public class BBB_predictorNodeModel extends NodeModel {
      */
     @Override
     protected void reset() {
-        // TODO: generated method stub
+        m_metrics = null;
+    }
+
+    /**
+     * Returns the metrics of the current or the last execution.
+     *
+     * @return the metrics or <code>null</code> if the node has not been
+     *         executed since it was reset
+     */
+    BBB_predictorMetrics metrics() {
+        return m_metrics;
     }
 
     /**
@@ -164,28 +449,41 @@ public class BBB_predictorNodeModel extends NodeModel {
     @Override
     protected DataTableSpec[] configure(final DataTableSpec[] inSpecs)
             throws InvalidSettingsException {
-        // TODO: generated method stub
+        m_hasInputTable = inSpecs[0] != null;
+        if (m_hasInputTable) {
+            DataColumnSpec colSpec =
+                    inSpecs[0].getColumnSpec(m_settings.colName());
+            if ((colSpec == null)
+                    || !BBB_predictorScorer.isCompatible(colSpec)) {
+                colSpec = null;
+                for (DataColumnSpec cs : inSpecs[0]) {
+                    if (BBB_predictorScorer.isCompatible(cs)) {
+                        colSpec = cs;
+                    }
+                }
+                if (colSpec == null) {
+                    throw new InvalidSettingsException(
+                            "No SDF, Mol or SMILES column in input table");
+                }
+                m_settings.colName(colSpec.getName());
+                setWarningMessage("Auto-selected column '"
+                        + colSpec.getName() + "'");
+            }
+            return new DataTableSpec[]{createTableSpec(inSpecs[0]),
+                    m_sdfReader.createBrokenSpec()};
+        }
     	DataTableSpec[] result = m_sdfReader.configure();
         String warningMessage = m_sdfReader.clearWarningMessage();
         if (warningMessage != null) {
             setWarningMessage(warningMessage);
         }
         DataTableSpec mol = result[0];
-        List<DataColumnSpec> cols = new ArrayList<DataColumnSpec>();
-        if(m_settings.isLogBBclassify()){
-        	cols.add(new DataColumnSpecCreator("LogBBclassify", IntCell.TYPE).createSpec());
-        }
-        if(m_settings.isLogPSclassify()){
-        	cols.add(new DataColumnSpecCreator("LogPSclassify", IntCell.TYPE).createSpec());
-        }
-        if(m_settings.isLogBBreg()){
-        	cols.add(new DataColumnSpecCreator("LogBBreg", DoubleCell.TYPE).createSpec());
-        }
-        if(m_settings.isLogPSreg()){
-        	cols.add(new DataColumnSpecCreator("LogPSreg", IntCell.TYPE).createSpec());
+        if (mol != null) {
+            // the properties are only known at execution time if all of
+            // them are extracted
+            DataTableSpec spec = BBB_predictorScorer.createPredictionSpec(m_settings);
+            result[0] = new DataTableSpec(mol,spec);
         }
-        DataTableSpec spec = new DataTableSpec(cols.toArray(new DataColumnSpec[cols.size()]));
-        result[0] = new DataTableSpec(mol,spec);
         return result;
     }
 
@@ -37,7 +37,7 @@ public class BBB_predictorNodePlugin extends Plugin {
     @Override
     public void start(final BundleContext context) throws Exception {
         super.start(context);
-
+        BBB_predictorMetricsMBean.register();
     }
 
     /**
@@ -48,6 +48,8 @@ public class BBB_predictorNodePlugin extends Plugin {
      */
     @Override
     public void stop(final BundleContext context) throws Exception {
+        BBB_predictorMetricsMBean.unregister();
+        BBB_predictorDescriptorCache.shutdown();
         super.stop(context);
         plugin = null;
     }
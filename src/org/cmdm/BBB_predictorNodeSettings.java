@@ -13,6 +13,9 @@ import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.config.Config;
 
 public class BBB_predictorNodeSettings {
+	/** Default number of threads used for scoring the molecules. */
+	public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
 	public static class Property {
 		/**
          * <code>true</code> if this property should be extracted,
@@ -91,6 +94,16 @@ public class BBB_predictorNodeSettings {
 	
 	private boolean m_isLogPSreg = true;
 
+	private int m_threads = DEFAULT_THREADS;
+
+	private boolean m_useDescriptorCache = true;
+
+	private boolean m_deduplicate = true;
+	
+	private boolean m_useRecordIndex = false;
+	
+	private boolean m_useCheckpoints = false;
+
     
 	
     /**
@@ -384,10 +397,22 @@ public class BBB_predictorNodeSettings {
         return Collections.unmodifiableCollection(m_properties);
     }
     	
+    /**
+     * Returns the name of the input table's column with the molecules that
+     * are scored if the optional input port is connected.
+     *
+     * @return the column name
+     */
 	public String colName(){
 		return m_colName;
 	}
 	
+    /**
+     * Sets the name of the input table's column with the molecules that are
+     * scored if the optional input port is connected.
+     *
+     * @param colName the column name
+     */
 	public void colName(final String colName){
 		m_colName = colName;
 	}
@@ -423,6 +448,114 @@ public class BBB_predictorNodeSettings {
 	public void isLogPSreg(final boolean b){
 		m_isLogPSreg = b;
 	}
+
+    /**
+     * Returns the number of threads used for scoring the molecules.
+     *
+     * @return the number of threads, at least 1
+     */
+    public int threads() {
+        return m_threads;
+    }
+
+    /**
+     * Sets the number of threads used for scoring the molecules.
+     *
+     * @param threads the number of threads, at least 1
+     */
+    public void threads(final int threads) {
+        m_threads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns if descriptor values should be taken from and stored in the
+     * persistent descriptor cache.
+     *
+     * @return <code>true</code> if the cache should be used,
+     *         <code>false</code> otherwise
+     */
+    public boolean useDescriptorCache() {
+        return m_useDescriptorCache;
+    }
+
+    /**
+     * Sets if descriptor values should be taken from and stored in the
+     * persistent descriptor cache.
+     *
+     * @param b <code>true</code> if the cache should be used,
+     *            <code>false</code> otherwise
+     */
+    public void useDescriptorCache(final boolean b) {
+        m_useDescriptorCache = b;
+    }
+
+    /**
+     * Returns if structurally identical records should be detected during
+     * execution and scored only once.
+     *
+     * @return <code>true</code> if duplicates should be detected,
+     *         <code>false</code> otherwise
+     */
+    public boolean deduplicate() {
+        return m_deduplicate;
+    }
+
+    /**
+     * Sets if structurally identical records should be detected during
+     * execution and scored only once.
+     *
+     * @param b <code>true</code> if duplicates should be detected,
+     *            <code>false</code> otherwise
+     */
+    public void deduplicate(final boolean b) {
+        m_deduplicate = b;
+    }
+
+    /**
+     * Returns whether record index files are used and written for local SDF
+     * files, so that the record boundaries are only searched once per file.
+     * The index files are kept in the plugin's cache directory. This is off
+     * by default.
+     *
+     * @return <code>true</code> if record indexes are used,
+     *         <code>false</code> otherwise
+     */
+    public boolean useRecordIndex() {
+        return m_useRecordIndex;
+    }
+
+    /**
+     * Sets whether record index files are used and written for local SDF
+     * files.
+     *
+     * @param b <code>true</code> if record indexes should be used,
+     *            <code>false</code> otherwise
+     */
+    public void useRecordIndex(final boolean b) {
+        m_useRecordIndex = b;
+    }
+
+    /**
+     * Returns whether the predictions are checkpointed while executing, so
+     * that a cancelled or failed execution can be resumed. This is off by
+     * default.
+     *
+     * @return <code>true</code> if checkpoints are written,
+     *         <code>false</code> otherwise
+     */
+    public boolean useCheckpoints() {
+        return m_useCheckpoints;
+    }
+
+    /**
+     * Sets whether the predictions are checkpointed while executing.
+     *
+     * @param b <code>true</code> if checkpoints should be written,
+     *            <code>false</code> otherwise
+     */
+    public void useCheckpoints(final boolean b) {
+        m_useCheckpoints = b;
+    }
 	
 //	public void saveSettings(final NodeSettingsWO settings){
 //		settings.addBoolean("isLogBBclassify", m_isLogBBclassify);
@@ -473,6 +606,12 @@ public class BBB_predictorNodeSettings {
 		settings.addBoolean("isLogPSclassify", m_isLogPSclassify);
 		settings.addBoolean("isLogBBreg", m_isLogBBreg);
 		settings.addBoolean("isLogPSreg", m_isLogPSreg);
+		settings.addInt("threads", m_threads);
+		settings.addBoolean("useDescriptorCache", m_useDescriptorCache);
+		settings.addBoolean("deduplicate", m_deduplicate);
+		settings.addBoolean("useRecordIndex", m_useRecordIndex);
+		settings.addBoolean("useCheckpoints", m_useCheckpoints);
+		settings.addString("colName", m_colName);
         
         Config props = settings.addConfig("properties");
 
@@ -512,6 +651,12 @@ public class BBB_predictorNodeSettings {
 		m_isLogPSclassify = settings.getBoolean("isLogPSclassify");
 		m_isLogBBreg = settings.getBoolean("isLogBBreg");
 		m_isLogPSreg = settings.getBoolean("isLogPSreg");
+		m_threads = Math.max(1, settings.getInt("threads", DEFAULT_THREADS));
+		m_useDescriptorCache = settings.getBoolean("useDescriptorCache", true);
+		m_deduplicate = settings.getBoolean("deduplicate", true);
+		m_useRecordIndex = settings.getBoolean("useRecordIndex", false);
+		m_useCheckpoints = settings.getBoolean("useCheckpoints", false);
+		m_colName = settings.getString("colName", "Molecules");
         
         m_properties.clear();
         Config props = settings.getConfig("properties");
@@ -579,6 +724,12 @@ public class BBB_predictorNodeSettings {
 		m_isLogPSclassify = settings.getBoolean("isLogPSclassify",true);
 		m_isLogBBreg = settings.getBoolean("isLogBBreg",true);
 		m_isLogPSreg = settings.getBoolean("isLogPSreg",true);
+		m_threads = Math.max(1, settings.getInt("threads", DEFAULT_THREADS));
+		m_useDescriptorCache = settings.getBoolean("useDescriptorCache", true);
+		m_deduplicate = settings.getBoolean("deduplicate", true);
+		m_useRecordIndex = settings.getBoolean("useRecordIndex", false);
+		m_useCheckpoints = settings.getBoolean("useCheckpoints", false);
+		m_colName = settings.getString("colName", "Molecules");
         m_properties.clear();
 
         try {
@@ -1,23 +1,115 @@
 package org.cmdm;
 
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GridLayout;
+import java.awt.Insets;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.BorderFactory;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.DefaultTableModel;
+
+import org.cmdm.BBB_predictorMetrics.Counter;
+import org.cmdm.BBB_predictorMetrics.SlowMolecule;
+import org.cmdm.BBB_predictorMetrics.Stage;
 import org.knime.core.node.NodeView;
 
 /**
- * <code>NodeView</code> for the "BBB_predictor" Node.
- * 
+ * <code>NodeView</code> for the "BBB_predictor" Node. Shows the performance
+ * of the current or last execution: the throughput over time, the time spent
+ * in each stage and descriptor, the slowest molecules and why records could
+ * not be read. The view reads the node's {@link BBB_predictorMetrics} once per
+ * second while it is open, the output tables are not touched.
  *
  * @author Yi Hsiao
  */
 public class BBB_predictorNodeView extends NodeView<BBB_predictorNodeModel> {
+    /** The refresh interval in milliseconds. */
+    private static final int REFRESH_INTERVAL = 1000;
+
+    private final JLabel m_summary = new JLabel();
+
+    private final ThroughputChart m_chart = new ThroughputChart();
+
+    private final DefaultTableModel m_stages = createTableModel("Stage",
+            "Count", "Mean [us]", "p99 [us]", "Time share");
+
+    private final DefaultTableModel m_descriptors = createTableModel(
+            "Descriptor", "Computations", "Mean [us]", "p99 [us]",
+            "Time share");
+
+    private final DefaultTableModel m_slowest = createTableModel("Molecule",
+            "Atoms", "Time [ms]");
+
+    private final DefaultTableModel m_failures = createTableModel("Reason",
+            "Records");
+
+    private final Timer m_timer;
 
     /**
      * Creates a new view.
-     * 
+     *
      * @param nodeModel The model (class: {@link BBB_predictorNodeModel})
      */
     protected BBB_predictorNodeView(final BBB_predictorNodeModel nodeModel) {
         super(nodeModel);
-        // TODO: generated method stub
+        JPanel top = new JPanel(new BorderLayout());
+        m_summary.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        top.add(m_summary, BorderLayout.NORTH);
+        m_chart.setBorder(BorderFactory.createTitledBorder(
+                "Molecules per second"));
+        top.add(m_chart, BorderLayout.CENTER);
+
+        JPanel tables = new JPanel(new GridLayout(2, 2));
+        tables.add(createTablePanel("Stages", m_stages));
+        tables.add(createTablePanel("Descriptors", m_descriptors));
+        tables.add(createTablePanel("Slowest molecules", m_slowest));
+        tables.add(createTablePanel("Failures", m_failures));
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(top, BorderLayout.NORTH);
+        panel.add(tables, BorderLayout.CENTER);
+        panel.setPreferredSize(new Dimension(800, 600));
+        setComponent(panel);
+
+        m_timer = new Timer(REFRESH_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent e) {
+                refresh();
+            }
+        });
+        refresh();
+    }
+
+    private static DefaultTableModel createTableModel(
+            final String... columns) {
+        return new DefaultTableModel(columns, 0) {
+            @Override
+            public boolean isCellEditable(final int row, final int column) {
+                return false;
+            }
+        };
+    }
+
+    private static JComponent createTablePanel(final String title,
+            final DefaultTableModel model) {
+        JScrollPane scrollPane = new JScrollPane(new JTable(model));
+        scrollPane.setBorder(BorderFactory.createTitledBorder(title));
+        return scrollPane;
     }
 
     /**
@@ -25,7 +117,7 @@ public class BBB_predictorNodeView extends NodeView<BBB_predictorNodeModel> {
      */
     @Override
     protected void modelChanged() {
-        // TODO: generated method stub
+        refresh();
     }
 
     /**
@@ -33,7 +125,7 @@ public class BBB_predictorNodeView extends NodeView<BBB_predictorNodeModel> {
      */
     @Override
     protected void onClose() {
-        // TODO: generated method stub
+        m_timer.stop();
     }
 
     /**
@@ -41,8 +133,147 @@ public class BBB_predictorNodeView extends NodeView<BBB_predictorNodeModel> {
      */
     @Override
     protected void onOpen() {
-        // TODO: generated method stub
+        refresh();
+        m_timer.start();
     }
 
-}
+    /**
+     * Updates all components from the metrics of the model.
+     */
+    private void refresh() {
+        BBB_predictorNodeModel model = getNodeModel();
+        BBB_predictorMetrics metrics = (model != null) ? model.metrics() : null;
+        m_stages.setRowCount(0);
+        m_descriptors.setRowCount(0);
+        m_slowest.setRowCount(0);
+        m_failures.setRowCount(0);
+        if (metrics == null) {
+            m_summary.setText("Not executed");
+            m_chart.setHistory(new double[0], 1);
+            return;
+        }
+
+        double seconds = metrics.elapsedNanos() / 1e9;
+        long records = metrics.get(Counter.RECORDS);
+        m_summary.setText(String.format("%s: %d records in %.1f s (%.1f/s),"
+                + " %d broken, %d restored, %d cache hits, %d duplicates",
+                metrics.isFinished() ? "Finished" : "Running", records,
+                seconds, (seconds > 0) ? records / seconds : 0.0,
+                metrics.get(Counter.BROKEN_RECORDS),
+                metrics.get(Counter.RESTORED_RECORDS),
+                metrics.get(Counter.CACHE_HITS),
+                metrics.get(Counter.DUPLICATE_HITS)));
+        m_chart.setHistory(metrics.throughputHistory(),
+                metrics.historyIntervalNanos() / 1e9);
+
+        long stageTotal = 0;
+        for (Stage s : Stage.values()) {
+            stageTotal += metrics.timer(s).totalNanos();
+        }
+        for (Stage s : Stage.values()) {
+            m_stages.addRow(timerRow(s.label(), metrics.timer(s), stageTotal));
+        }
+        long descriptorTotal = 0;
+        for (BBB_predictorDescriptor d : BBB_predictorDescriptor.values()) {
+            descriptorTotal += metrics.timer(d).totalNanos();
+        }
+        for (BBB_predictorDescriptor d : BBB_predictorDescriptor.values()) {
+            m_descriptors.addRow(timerRow(d.label(), metrics.timer(d),
+                    descriptorTotal));
+        }
+
+        List<SlowMolecule> slowest = metrics.slowest();
+        for (SlowMolecule m : slowest) {
+            m_slowest.addRow(new Object[]{m.name,
+                (m.atomCount >= 0) ? Integer.valueOf(m.atomCount) : "?",
+                String.format("%.2f", m.nanos / 1e6)});
+        }
+        for (Map.Entry<String, Long> e : metrics.failures().entrySet()) {
+            m_failures.addRow(new Object[]{e.getKey(), e.getValue()});
+        }
+    }
 
+    private static Object[] timerRow(final String label,
+            final BBB_predictorMetrics.Timer timer, final long total) {
+        return new Object[]{label, timer.count(),
+            String.format("%.1f", timer.meanNanos() / 1e3),
+            String.format("%.1f", timer.percentile(99) / 1e3),
+            String.format("%.1f%%", (total > 0)
+                    ? 100.0 * timer.totalNanos() / total : 0.0)};
+    }
+
+    /**
+     * Line chart of the throughput history.
+     */
+    private static final class ThroughputChart extends JComponent {
+        private static final int MARGIN = 8;
+
+        private double[] m_rates = new double[0];
+
+        private double m_intervalSeconds = 1;
+
+        ThroughputChart() {
+            setPreferredSize(new Dimension(800, 180));
+        }
+
+        void setHistory(final double[] rates, final double intervalSeconds) {
+            m_rates = rates;
+            m_intervalSeconds = intervalSeconds;
+            repaint();
+        }
+
+        @Override
+        protected void paintComponent(final Graphics g) {
+            super.paintComponent(g);
+            Graphics2D g2 = (Graphics2D)g.create();
+            try {
+                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                        RenderingHints.VALUE_ANTIALIAS_ON);
+                paintChart(g2);
+            } finally {
+                g2.dispose();
+            }
+        }
+
+        private void paintChart(final Graphics2D g) {
+            Insets insets = getInsets();
+            FontMetrics fm = g.getFontMetrics();
+            int left = insets.left + MARGIN + fm.stringWidth("000000");
+            int right = getWidth() - insets.right - MARGIN;
+            int top = insets.top + MARGIN;
+            int bottom = getHeight() - insets.bottom - MARGIN
+                    - fm.getHeight();
+            if ((right <= left) || (bottom <= top)) {
+                return;
+            }
+            double max = 0;
+            for (double r : m_rates) {
+                max = Math.max(max, r);
+            }
+            g.setColor(Color.GRAY);
+            g.drawLine(left, bottom, right, bottom);
+            g.drawLine(left, top, left, bottom);
+            g.drawString(String.format("%.0f", max),
+                    insets.left + MARGIN, top + fm.getAscent());
+            g.drawString("0", insets.left + MARGIN, bottom);
+            String span = String.format("%.0f s",
+                    m_rates.length * m_intervalSeconds);
+            g.drawString(span, right - fm.stringWidth(span),
+                    bottom + fm.getAscent());
+            if ((m_rates.length < 2) || (max <= 0)) {
+                return;
+            }
+            g.setColor(new Color(0, 102, 204));
+            double dx = (right - left) / (double)(m_rates.length - 1);
+            int prevX = left;
+            int prevY = bottom - (int)((bottom - top) * m_rates[0] / max);
+            for (int i = 1; i < m_rates.length; i++) {
+                int x = left + (int)Math.round(i * dx);
+                int y = bottom - (int)((bottom - top) * m_rates[i] / max);
+                g.drawLine(prevX, prevY, x, y);
+                prevX = x;
+                prevY = y;
+            }
+        }
+    }
+}
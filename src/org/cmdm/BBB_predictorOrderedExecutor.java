@@ -0,0 +1,146 @@
+package org.cmdm;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Runs tasks on a fixed number of worker threads and hands their results to a
+ * {@link ResultHandler} in the order in which the tasks were submitted. The
+ * number of tasks in flight is bounded, so {@link #submit(Callable)} blocks
+ * while the oldest task is still being computed. All results are handled in
+ * the submitting thread.
+ *
+ * @param <R> the type of the tasks' results
+ * @author Yi Hsiao
+ */
+final class BBB_predictorOrderedExecutor<R> {
+    /**
+     * Receives the results of the submitted tasks in submission order.
+     *
+     * @param <R> the type of the results
+     */
+    interface ResultHandler<R> {
+        /**
+         * Called in the submitting thread for each finished task.
+         *
+         * @param result the task's result
+         * @throws Exception if the result cannot be handled
+         */
+        void handle(R result) throws Exception;
+    }
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final ExecutorService m_pool;
+
+    private final int m_maxPending;
+
+    private final ArrayDeque<Future<R>> m_pending = new ArrayDeque<Future<R>>();
+
+    private final ResultHandler<R> m_handler;
+
+    /**
+     * Creates a new executor. If only one thread is requested, tasks are
+     * computed directly in the submitting thread.
+     *
+     * @param threads the number of worker threads
+     * @param handler the handler for the results
+     */
+    BBB_predictorOrderedExecutor(final int threads,
+            final ResultHandler<R> handler) {
+        m_handler = handler;
+        if (threads > 1) {
+            m_pool = Executors.newFixedThreadPool(threads,
+                    new WorkerThreadFactory(POOL_COUNT.incrementAndGet()));
+            m_maxPending = 4 * threads;
+        } else {
+            m_pool = null;
+            m_maxPending = 0;
+        }
+    }
+
+    /**
+     * Submits a new task. If the maximum number of tasks is in flight, the
+     * results of the oldest tasks are handled first.
+     *
+     * @param task the task
+     * @throws Exception if a task or the result handler failed
+     */
+    void submit(final Callable<R> task) throws Exception {
+        if (m_pool == null) {
+            m_handler.handle(task.call());
+            return;
+        }
+        while (m_pending.size() >= m_maxPending) {
+            handleNext();
+        }
+        m_pending.add(m_pool.submit(task));
+    }
+
+    /**
+     * Waits for all submitted tasks and handles their results.
+     *
+     * @param exec monitor for cancellation
+     * @throws Exception if a task or the result handler failed or execution
+     *             has been canceled
+     */
+    void finish(final ExecutionMonitor exec) throws Exception {
+        while (!m_pending.isEmpty()) {
+            exec.checkCanceled();
+            handleNext();
+        }
+    }
+
+    /**
+     * Cancels all pending tasks and stops the worker threads. Must always be
+     * called, also if execution failed or has been canceled.
+     */
+    void shutdown() {
+        for (Future<R> f : m_pending) {
+            f.cancel(true);
+        }
+        m_pending.clear();
+        if (m_pool != null) {
+            m_pool.shutdownNow();
+        }
+    }
+
+    private void handleNext() throws Exception {
+        R result;
+        try {
+            result = m_pending.poll().get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception)ex.getCause();
+            }
+            throw ex;
+        }
+        m_handler.handle(result);
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger m_threadCount = new AtomicInteger();
+
+        private final int m_poolNumber;
+
+        WorkerThreadFactory(final int poolNumber) {
+            m_poolNumber = poolNumber;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(r, "BBB_predictor-" + m_poolNumber
+                    + "-worker-" + m_threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package org.cmdm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.knime.core.node.NodeLogger;
+
+/**
+ * A persistent index of the records in a local SDF file. For each record the
+ * index stores its byte offset and length, so that a file that has been read
+ * once can be processed again without scanning it for record boundaries, and
+ * record <i>n</i> can be found in constant time.
+ * <p>
+ * The index is kept in the plugin's cache directory, never next to the SDF
+ * file. It records the size and modification time of the SDF file and is
+ * ignored once either of them changes. Index files are written to a temporary
+ * file first and renamed when complete, so a cancelled execution never leaves
+ * a truncated index.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorSDFIndex {
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(BBB_predictorSDFIndex.class);
+
+    /** The suffix of index files. */
+    static final String SUFFIX = ".bbbidx";
+
+    private static final int MAGIC = 0x42424249; // "BBBI"
+
+    private static final int VERSION = 2;
+
+    /** magic, version, file size, file modification time, record count */
+    private static final int HEADER_SIZE = 32;
+
+    /** offset, length */
+    private static final int ENTRY_SIZE = 12;
+
+    private final File m_sdf;
+
+    private final MappedByteBuffer m_entries;
+
+    private final long m_size;
+
+    private BBB_predictorSDFIndex(final File sdf,
+            final MappedByteBuffer entries, final long size) {
+        m_sdf = sdf;
+        m_entries = entries;
+        m_size = size;
+    }
+
+    /**
+     * Maps the SDF file this index belongs to.
+     *
+     * @return the mapped file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    BBB_predictorMappedSDFFile openFile() throws IOException {
+        return BBB_predictorMappedSDFFile.open(m_sdf);
+    }
+
+    /**
+     * Returns the number of records in the file.
+     *
+     * @return the number of records
+     */
+    long size() {
+        return m_size;
+    }
+
+    /**
+     * Returns the offset of a record.
+     *
+     * @param record the record's index
+     * @return the position of the record's first byte
+     */
+    long offset(final long record) {
+        return m_entries.getLong(position(record));
+    }
+
+    /**
+     * Returns the position after a record's last byte.
+     *
+     * @param record the record's index
+     * @return the record's end
+     */
+    long end(final long record) {
+        int pos = position(record);
+        return m_entries.getLong(pos) + m_entries.getInt(pos + 8);
+    }
+
+    /**
+     * Decodes a record from the mapped SDF file this index belongs to.
+     *
+     * @param file the mapped SDF file
+     * @param record the record's index
+     * @return the record's text
+     */
+    String decode(final BBB_predictorMappedSDFFile file, final long record) {
+        return file.decode(offset(record), end(record));
+    }
+
+    private int position(final long record) {
+        if ((record < 0) || (record >= m_size)) {
+            throw new IndexOutOfBoundsException("Record " + record
+                    + " does not exist, index has " + m_size + " records");
+        }
+        return (int)(record * ENTRY_SIZE);
+    }
+
+    /**
+     * Returns the index file for an SDF file in the cache directory.
+     */
+    private static File indexFile(final File sdf) {
+        String path = sdf.getAbsolutePath();
+        return new File(new File(BBB_predictorDescriptorCache.cacheDirectory(),
+                "index"), sdf.getName() + "-"
+                + Integer.toHexString(path.hashCode()) + SUFFIX);
+    }
+
+    /**
+     * Loads the index for an SDF file.
+     *
+     * @param sdf an SDF file
+     * @return the index or <code>null</code> if there is no index or it is
+     *         out of date
+     */
+    static BBB_predictorSDFIndex load(final File sdf) {
+        File f = indexFile(sdf);
+        if (f.isFile()) {
+            try {
+                return load(f, sdf);
+            } catch (IOException ex) {
+                LOGGER.debug("Could not read record index " + f + ": "
+                        + ex.getMessage(), ex);
+            }
+        }
+        return null;
+    }
+
+    private static BBB_predictorSDFIndex load(final File indexFile,
+            final File sdf) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            if ((raf.length() < HEADER_SIZE) || (raf.readInt() != MAGIC)
+                    || (raf.readInt() != VERSION)
+                    || (raf.readLong() != sdf.length())
+                    || (raf.readLong() != sdf.lastModified())) {
+                return null;
+            }
+            long size = raf.readLong();
+            long bytes = size * ENTRY_SIZE;
+            if ((size < 0) || (bytes > Integer.MAX_VALUE)
+                    || (raf.length() != HEADER_SIZE + bytes)) {
+                return null;
+            }
+            // the mapping stays valid after the file has been closed
+            MappedByteBuffer entries = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, HEADER_SIZE, bytes);
+            return new BBB_predictorSDFIndex(sdf, entries, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the index of an SDF file while the file is being scanned.
+     */
+    static final class Writer {
+        private final File m_sdf;
+
+        private final long m_sdfSize;
+
+        private final long m_sdfModified;
+
+        private final File m_target;
+
+        private final File m_tempFile;
+
+        private final DataOutputStream m_out;
+
+        private long m_size;
+
+        private Writer(final File sdf, final File target) throws IOException {
+            m_sdf = sdf;
+            m_sdfSize = sdf.length();
+            m_sdfModified = sdf.lastModified();
+            m_target = target;
+            m_tempFile = File.createTempFile(target.getName(), ".tmp",
+                    target.getParentFile());
+            m_out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(m_tempFile), 1 << 16));
+            m_out.writeInt(MAGIC);
+            m_out.writeInt(VERSION);
+            m_out.writeLong(m_sdfSize);
+            m_out.writeLong(m_sdfModified);
+            m_out.writeLong(0); // record count, filled in by commit
+        }
+
+        /**
+         * Adds the next record.
+         *
+         * @param offset the position of the record's first byte
+         * @param end the position after the record's last byte
+         * @throws IOException if writing fails
+         */
+        void add(final long offset, final long end) throws IOException {
+            m_out.writeLong(offset);
+            m_out.writeInt((int)(end - offset));
+            m_size++;
+        }
+
+        /**
+         * Completes the index after all records have been added.
+         *
+         * @throws IOException if writing fails
+         */
+        void commit() throws IOException {
+            m_out.close();
+            if ((m_sdf.length() != m_sdfSize)
+                    || (m_sdf.lastModified() != m_sdfModified)) {
+                // the file has changed while it was read
+                abort();
+                return;
+            }
+            RandomAccessFile raf = new RandomAccessFile(m_tempFile, "rw");
+            try {
+                raf.seek(HEADER_SIZE - 8);
+                raf.writeLong(m_size);
+            } finally {
+                raf.close();
+            }
+            if (m_target.exists() && !m_target.delete()) {
+                abort();
+                return;
+            }
+            if (!m_tempFile.renameTo(m_target)) {
+                abort();
+            }
+        }
+
+        /** Discards the partially written index. */
+        void abort() {
+            try {
+                m_out.close();
+            } catch (IOException ex) {
+                // ignore, the file is deleted anyway
+            }
+            if (!m_tempFile.delete()) {
+                m_tempFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Creates a writer for the index of an SDF file in the cache directory.
+     *
+     * @param sdf an SDF file
+     * @return a writer or <code>null</code> if the index cannot be written
+     */
+    static Writer createWriter(final File sdf) {
+        File target = indexFile(sdf);
+        try {
+            target.getParentFile().mkdirs();
+            return new Writer(sdf, target);
+        } catch (IOException ex) {
+            LOGGER.debug("Cannot write record index " + target + ": "
+                    + ex.getMessage(), ex);
+            return null;
+        }
+    }
+}
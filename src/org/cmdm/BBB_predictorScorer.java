@@ -0,0 +1,663 @@
+package org.cmdm;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cmdm.BBB_predictorFlightRecorder.Type;
+import org.cmdm.BBB_predictorMetrics.Counter;
+import org.cmdm.BBB_predictorMetrics.Stage;
+import org.cmdm.BBB_predictorNodeSettings.Property;
+import org.knime.chem.types.MolValue;
+import org.knime.chem.types.SdfValue;
+import org.knime.chem.types.SmilesValue;
+import org.knime.chem.base.util.sdf.SDFAnalyzer;
+import org.knime.chem.base.util.sdf.CtabBlock;
+import org.knime.chem.base.util.sdf.MolfileBlock;
+import org.knime.chem.base.util.sdf.SDFBlock;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.DataValue;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.NodeLogger;
+import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+import org.openscience.cdk.smiles.SmilesParser;
+
+/**
+ * Turns single SDF records into output rows: the record is tokenised, its
+ * connection table is turned into a molecule, the descriptors required by the
+ * enabled predictions are computed and the predictions appended to the
+ * reader's cells. Alternatively, a scorer computes only the prediction cells
+ * for the SDF, Mol or SMILES cells of an input table. A scorer is created once
+ * per execution and may be used by several threads concurrently; each thread
+ * computes the descriptors with its own {@link BBB_predictorDescriptorEngine}.
+ * The time spent parsing and predicting and the outcome of every record are
+ * recorded in the execution's {@link BBB_predictorMetrics}.
+ * <p>
+ * If the enabled predictions only need TPSA and Mannhold LogP (see
+ * {@link BBB_predictorDescriptorPlan#isGraphOnly()}), SDF and Mol records the
+ * connection table parser understands are scored without creating a CDK
+ * molecule. Such records bypass the descriptor cache and the duplicate table,
+ * whose keys are hashes of the molecule; computing both descriptors from the
+ * parsed arrays is cheaper than the hash.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorScorer {
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(BBB_predictorScorer.class);
+
+    /**
+     * The outcome of scoring one record. For records read from files either
+     * the cells of the output row are set or the row for the table of broken
+     * records. For input table cells the prediction cells are always set; they
+     * are missing if the molecule could not be read, and the broken row
+     * describes why.
+     */
+    static final class Result {
+        /**
+         * The cells of the output row, <code>null</code> for broken records
+         * read from files.
+         */
+        final DataCell[] cells;
+
+        /** The row for the broken records table, <code>null</code> otherwise. */
+        final DataRow brokenRow;
+
+        private Result(final DataCell[] cells, final DataRow brokenRow) {
+            this.cells = cells;
+            this.brokenRow = brokenRow;
+        }
+    }
+
+    private final BBB_predictorNodeSettings m_settings;
+
+    private final BBB_predictorDefaultSDFReader m_sdfReader;
+
+    private final Collection<Property> m_properties;
+
+    private final int m_predictionOffset;
+
+    private final int m_numCells;
+
+    private final BBB_predictorDescriptorPlan m_plan;
+
+    private final BBB_predictorDescriptorCache m_cache;
+
+    private final BBB_predictorDuplicateTable m_duplicates;
+
+    private final BBB_predictorMetrics m_metrics;
+
+    private final List<BBB_predictorDescriptorEngine> m_allEngines =
+            new ArrayList<BBB_predictorDescriptorEngine>();
+
+    private final ThreadLocal<BBB_predictorDescriptorEngine> m_engines =
+            new ThreadLocal<BBB_predictorDescriptorEngine>() {
+                @Override
+                protected BBB_predictorDescriptorEngine initialValue() {
+                    BBB_predictorDescriptorEngine engine =
+                            new BBB_predictorDescriptorEngine(m_metrics);
+                    synchronized (m_allEngines) {
+                        m_allEngines.add(engine);
+                    }
+                    return engine;
+                }
+            };
+
+    private final DataType[] m_predictionTypes;
+
+    private final ThreadLocal<SmilesParser> m_smilesParsers =
+            new ThreadLocal<SmilesParser>() {
+                @Override
+                protected SmilesParser initialValue() {
+                    return new SmilesParser(
+                            DefaultChemObjectBuilder.getInstance());
+                }
+            };
+
+    private final ThreadLocal<BBB_predictorCtabParser> m_parsers =
+            new ThreadLocal<BBB_predictorCtabParser>() {
+                @Override
+                protected BBB_predictorCtabParser initialValue() {
+                    return new BBB_predictorCtabParser();
+                }
+            };
+
+    private final AtomicLong m_readerFallbacks = new AtomicLong();
+
+    /**
+     * Creates a new scorer for records read from files.
+     *
+     * @param settings the node settings, must not be changed while the scorer
+     *            is in use
+     * @param sdfReader the reader used to create the molecule cells
+     * @param properties the properties that should be extracted
+     * @param metrics the metrics of the execution
+     */
+    BBB_predictorScorer(final BBB_predictorNodeSettings settings,
+            final BBB_predictorDefaultSDFReader sdfReader,
+            final Collection<Property> properties,
+            final BBB_predictorMetrics metrics) {
+        m_settings = settings;
+        m_metrics = metrics;
+        m_plan = BBB_predictorDescriptorPlan.create(settings);
+        m_cache = (settings.useDescriptorCache() && !m_plan.isEmpty())
+                ? BBB_predictorDescriptorCache.getInstance() : null;
+        m_duplicates = (settings.deduplicate() && !m_plan.isEmpty())
+                ? new BBB_predictorDuplicateTable() : null;
+        m_sdfReader = sdfReader;
+        m_properties = properties;
+        DataTableSpec predictionSpec = createPredictionSpec(settings);
+        m_predictionTypes = new DataType[predictionSpec.getNumColumns()];
+        for (int i = 0; i < m_predictionTypes.length; i++) {
+            m_predictionTypes[i] = predictionSpec.getColumnSpec(i).getType();
+        }
+        if (properties != null) {
+            m_predictionOffset =
+                    sdfReader.createSuccessfulSpec(properties).getNumColumns();
+            m_numCells = createSpec().getNumColumns();
+        } else {
+            m_predictionOffset = 0;
+            m_numCells = createPredictionSpec(settings).getNumColumns();
+        }
+    }
+
+    /**
+     * Creates a new scorer for the molecule cells of an input table.
+     *
+     * @param settings the node settings, must not be changed while the scorer
+     *            is in use
+     * @param sdfReader the reader whose broken records spec is used for
+     *            molecules that cannot be read
+     * @param metrics the metrics of the execution
+     */
+    BBB_predictorScorer(final BBB_predictorNodeSettings settings,
+            final BBB_predictorDefaultSDFReader sdfReader,
+            final BBB_predictorMetrics metrics) {
+        this(settings, sdfReader, null, metrics);
+    }
+
+    /**
+     * Checks whether the molecules in a column can be scored.
+     *
+     * @param colSpec a column spec
+     * @return <code>true</code> if the column holds SDF, Mol or SMILES
+     *         values, <code>false</code> otherwise
+     */
+    static boolean isCompatible(final DataColumnSpec colSpec) {
+        for (Class<? extends DataValue> c : Arrays.asList(SdfValue.class,
+                MolValue.class, SmilesValue.class)) {
+            if (colSpec.getType().isCompatible(c)
+                    || colSpec.getType().isAdaptable(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the descriptors this scorer computes for each molecule.
+     *
+     * @return the descriptor plan
+     */
+    BBB_predictorDescriptorPlan plan() {
+        return m_plan;
+    }
+
+    /**
+     * Returns the descriptor cache used by this scorer.
+     *
+     * @return the cache or <code>null</code> if caching is disabled
+     */
+    BBB_predictorDescriptorCache cache() {
+        return m_cache;
+    }
+
+    /**
+     * Returns the table of structures seen during this execution.
+     *
+     * @return the table or <code>null</code> if duplicates are not detected
+     */
+    BBB_predictorDuplicateTable duplicates() {
+        return m_duplicates;
+    }
+
+    /**
+     * Returns the spec of the rows created by this scorer for records read
+     * from files.
+     *
+     * @return the output spec
+     */
+    DataTableSpec createSpec() {
+        return new DataTableSpec(
+                m_sdfReader.createSuccessfulSpec(m_properties),
+                createPredictionSpec(m_settings));
+    }
+
+    /**
+     * Creates the spec of the prediction columns that are enabled in the
+     * given settings.
+     *
+     * @param settings the node settings
+     * @return the spec of the prediction columns
+     */
+    static DataTableSpec createPredictionSpec(
+            final BBB_predictorNodeSettings settings) {
+        List<DataColumnSpec> cols = new ArrayList<DataColumnSpec>();
+        if(settings.isLogBBclassify()){
+        	cols.add(new DataColumnSpecCreator("LogBBclassify", IntCell.TYPE).createSpec());
+        }
+        if(settings.isLogPSclassify()){
+        	cols.add(new DataColumnSpecCreator("LogPSclassify", IntCell.TYPE).createSpec());
+        }
+        if(settings.isLogBBreg()){
+        	cols.add(new DataColumnSpecCreator("LogBBreg", DoubleCell.TYPE).createSpec());
+        }
+        if(settings.isLogPSreg()){
+        	cols.add(new DataColumnSpecCreator("LogPSreg", IntCell.TYPE).createSpec());
+        }
+        return new DataTableSpec(cols.toArray(new DataColumnSpec[cols.size()]));
+    }
+
+    /**
+     * Scores a single record.
+     *
+     * @param index the record's index
+     * @param mol the complete SDF record
+     * @param source the URL the record has been read from
+     * @return the result
+     */
+    Result score(final long index, final String mol, final URL source) {
+        return score(index, mol, source, null);
+    }
+
+    /**
+     * Scores a single record, possibly with predictions restored from a
+     * checkpoint. Restored records are tokenised to create the other cells,
+     * but neither parsed into a molecule nor are their descriptors computed.
+     *
+     * @param index the record's index
+     * @param mol the complete SDF record
+     * @param source the URL the record has been read from
+     * @param restored the record's prediction values, NaN for missing values,
+     *            or <code>null</code> if the predictions must be computed
+     * @return the result
+     */
+    Result score(final long index, final String mol, final URL source,
+            final double[] restored) {
+        m_metrics.add(Counter.RECORDS, 1);
+        Object event = BBB_predictorFlightRecorder.begin(Type.RECORD_PARSED);
+        long start = System.nanoTime();
+        BBB_predictorDescriptorEngine engine = m_engines.get();
+        boolean bound = !m_plan.isEmpty() && (restored == null);
+        SDFBlock sdf;
+        IAtomContainer molecule = null;
+        try {
+            sdf = SDFAnalyzer.analyzeSDF(mol);
+            if (bound) {
+                molecule = bindRecord(engine, mol, sdf);
+            }
+        } catch (Exception ex) {
+            m_metrics.failed(ex);
+            return new Result(null,
+                    m_sdfReader.createBrokenRow(index, mol, ex, source));
+        }
+        DataCell[] cells = m_sdfReader.createCells(mol, sdf, source,
+                m_properties, m_numCells);
+        long parsed = System.nanoTime();
+        m_metrics.timer(Stage.PARSE).record(parsed - start);
+        int atomCount = bound ? engine.atomCount() : -1;
+        if (event != null) {
+            BBB_predictorFlightRecorder.commit(event, index, name(sdf, index),
+                    atomCount, bound ? engine.bondCount() : -1);
+        }
+        if (restored != null) {
+            m_metrics.add(Counter.RESTORED_RECORDS, 1);
+            restorePredictions(restored, cells, m_predictionOffset);
+        } else {
+            appendPredictions(engine, molecule, cells, m_predictionOffset);
+            long end = System.nanoTime();
+            m_metrics.timer(Stage.PREDICT).record(end - parsed);
+            m_metrics.scored(name(sdf, index), atomCount, end - start);
+        }
+        return new Result(cells, null);
+    }
+
+    /**
+     * Returns the title of a record or, if it has none, its index.
+     */
+    private static String name(final SDFBlock sdf, final long index) {
+        MolfileBlock molfile = sdf.getMolfileBlock();
+        String title = (molfile != null) ? molfile.getTitle() : null;
+        if ((title == null) || title.trim().isEmpty()) {
+            return "Record " + index;
+        }
+        return title.trim();
+    }
+
+    /**
+     * Returns the number of prediction cells per row.
+     *
+     * @return the number of enabled predictions
+     */
+    int predictionCount() {
+        return m_predictionTypes.length;
+    }
+
+    /**
+     * Returns the prediction values of a scored record, e.g. for storing them
+     * in a checkpoint.
+     *
+     * @param result the result of {@link #score(long, String, URL)}
+     * @return the prediction values, NaN for missing values, or
+     *         <code>null</code> if the record is broken
+     */
+    double[] predictionValues(final Result result) {
+        if (result.cells == null) {
+            return null;
+        }
+        double[] values = new double[m_predictionTypes.length];
+        for (int i = 0; i < values.length; i++) {
+            DataCell cell = result.cells[m_predictionOffset + i];
+            values[i] = cell.isMissing() ? Double.NaN
+                    : ((DoubleValue)cell).getDoubleValue();
+        }
+        return values;
+    }
+
+    private void restorePredictions(final double[] values,
+            final DataCell[] cells, final int offset) {
+        for (int i = 0; i < values.length; i++) {
+            if (Double.isNaN(values[i])) {
+                cells[offset + i] = DataType.getMissingCell();
+            } else if (IntCell.TYPE.equals(m_predictionTypes[i])) {
+                cells[offset + i] = new IntCell((int)values[i]);
+            } else {
+                cells[offset + i] = new DoubleCell(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Computes the predictions for a molecule cell of an input table.
+     *
+     * @param key the key of the input row
+     * @param cell an SDF, Mol or SMILES cell
+     * @return the result, its cells are the prediction cells
+     */
+    Result score(final RowKey key, final DataCell cell) {
+        m_metrics.add(Counter.RECORDS, 1);
+        DataCell[] cells = new DataCell[m_numCells];
+        if (cell.isMissing()) {
+            Arrays.fill(cells, DataType.getMissingCell());
+            return new Result(cells, null);
+        }
+        Object event = BBB_predictorFlightRecorder.begin(Type.RECORD_PARSED);
+        long start = System.nanoTime();
+        BBB_predictorDescriptorEngine engine = m_engines.get();
+        boolean bound = !m_plan.isEmpty();
+        String text = null;
+        IAtomContainer molecule = null;
+        try {
+            if (cell instanceof SdfValue) {
+                text = ((SdfValue)cell).getSdfValue();
+                if (bound) {
+                    molecule = bindRecord(engine, text,
+                            SDFAnalyzer.analyzeSDF(text));
+                }
+            } else if (cell instanceof MolValue) {
+                text = ((MolValue)cell).getMolValue();
+                if (bound) {
+                    molecule = bindRecord(engine, text,
+                            SDFAnalyzer.analyzeSDF(text));
+                }
+            } else if (cell instanceof SmilesValue) {
+                text = ((SmilesValue)cell).getSmilesValue();
+                if (bound) {
+                    molecule = m_smilesParsers.get().parseSmiles(text);
+                    engine.bind(molecule);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported cell type: "
+                        + cell.getType());
+            }
+        } catch (Exception ex) {
+            m_metrics.failed(ex);
+            Arrays.fill(cells, DataType.getMissingCell());
+            return new Result(cells, createBrokenRow(key, text, ex));
+        }
+        long parsed = System.nanoTime();
+        m_metrics.timer(Stage.PARSE).record(parsed - start);
+        int atomCount = bound ? engine.atomCount() : -1;
+        if (event != null) {
+            BBB_predictorFlightRecorder.commit(event, -1L, key.getString(),
+                    atomCount, bound ? engine.bondCount() : -1);
+        }
+        appendPredictions(engine, molecule, cells, 0);
+        long end = System.nanoTime();
+        m_metrics.timer(Stage.PREDICT).record(end - parsed);
+        m_metrics.scored(key.getString(), atomCount, end - start);
+        return new Result(cells, null);
+    }
+
+    private DataRow createBrokenRow(final RowKey key, final String text,
+            final Exception ex) {
+        String errMessage = ex.getMessage();
+        if (errMessage == null) {
+            errMessage = "<no error message available>";
+        }
+
+        LOGGER.warn(errMessage, ex);
+        DataCell[] cells =
+                new DataCell[m_sdfReader.createBrokenSpec().getNumColumns()];
+        Arrays.fill(cells, DataType.getMissingCell());
+        if (text != null) {
+            cells[0] = new StringCell(text);
+        }
+        cells[1] = new StringCell(errMessage);
+        return new DefaultRow(key, cells);
+    }
+
+    /**
+     * Reads the connection table of an SDF or Mol record and binds it to the
+     * engine. If the plan only needs descriptors of the connection table,
+     * records the parser understands are bound without creating a molecule.
+     *
+     * @return the bound molecule, <code>null</code> if the record has been
+     *         bound from the parser
+     */
+    private IAtomContainer bindRecord(
+            final BBB_predictorDescriptorEngine engine, final String mol,
+            final SDFBlock sdf) throws CDKException, IOException {
+        MolfileBlock molfile = sdf.getMolfileBlock();
+        CtabBlock ctab = (molfile != null) ? molfile.getCtabBlock() : null;
+        if (ctab != null) {
+            BBB_predictorCtabParser parser = m_parsers.get();
+            if (parser.parse(mol, ctab.getAtomCount(), ctab.getBondCount())) {
+                if (m_plan.isGraphOnly()) {
+                    engine.bind(parser, molfile.getTitle());
+                    return null;
+                }
+                IAtomContainer molecule = parser.createAtomContainer(
+                        DefaultChemObjectBuilder.getInstance(),
+                        molfile.getTitle());
+                engine.bind(molecule);
+                return molecule;
+            }
+        }
+        m_readerFallbacks.incrementAndGet();
+        IAtomContainer molecule = parseMolecule(mol);
+        engine.bind(molecule);
+        return molecule;
+    }
+
+    private static IAtomContainer parseMolecule(final String mol)
+            throws CDKException, IOException {
+        IteratingSDFReader reader = new IteratingSDFReader(
+                new StringReader(mol), DefaultChemObjectBuilder.getInstance());
+        try {
+            if (!reader.hasNext()) {
+                throw new CDKException("Could not read molecule from record");
+            }
+            return reader.next();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void appendPredictions(final BBB_predictorDescriptorEngine engine,
+            final IAtomContainer molecule, final DataCell[] cells,
+            final int offset) {
+        int i = offset;
+        int duplicateMask = 0;
+        int cacheMask = 0;
+        if (molecule != null) {
+            if (m_duplicates != null) {
+                Object event =
+                        BBB_predictorFlightRecorder.begin(Type.CACHE_LOOKUP);
+                duplicateMask = engine.loadFrom(m_duplicates);
+                if (duplicateMask != 0) {
+                    m_metrics.add(Counter.DUPLICATE_HITS, 1);
+                }
+                if (event != null) {
+                    BBB_predictorFlightRecorder.commit(event, "duplicates",
+                            duplicateMask != 0, molecule.getAtomCount());
+                }
+            }
+            int planMask = m_plan.mask();
+            if ((m_cache != null)
+                    && ((engine.knownMask() & planMask) != planMask)) {
+                Object event =
+                        BBB_predictorFlightRecorder.begin(Type.CACHE_LOOKUP);
+                cacheMask = engine.loadFrom(m_cache);
+                m_metrics.add((cacheMask != 0) ? Counter.CACHE_HITS
+                        : Counter.CACHE_MISSES, 1);
+                if (event != null) {
+                    BBB_predictorFlightRecorder.commit(event, "cache",
+                            cacheMask != 0, molecule.getAtomCount());
+                }
+            }
+        }
+        if(m_settings.isLogBBclassify()){
+        	cells[i] = new IntCell(1);
+        	i++;
+        }
+        if(m_settings.isLogPSclassify()){
+        	// BCUT and TPSA are only computed on the branch that needs them
+        	if(engine.get(BBB_predictorDescriptor.ALOGP)<=-0.4263){
+        		if(engine.get(BBB_predictorDescriptor.BCUT)<=11.9){
+        			cells[i] = new IntCell(1);
+        		}else{
+        			cells[i] = new IntCell(-1);
+        		}
+        	}else{
+        		if(engine.get(BBB_predictorDescriptor.TPSA)<=150.54553){
+        			cells[i] = new IntCell(1);
+        		}else{
+        			cells[i] = new IntCell(-1);
+        		}
+        	}
+        	i++;
+        }
+        if(m_settings.isLogBBreg()){
+        	double tpsa = engine.get(BBB_predictorDescriptor.TPSA);
+        	double mannholdLogP = engine.get(BBB_predictorDescriptor.MANNHOLD_LOGP);
+        	cells[i] = new DoubleCell(0.05-0.011*tpsa+0.19*mannholdLogP);
+        	i++;
+        }
+        if(m_settings.isLogPSreg()){
+        	cells[i] = new IntCell(1);
+        }
+        if (molecule != null) {
+            if (m_duplicates != null) {
+                engine.storeTo(m_duplicates, duplicateMask);
+            }
+            if (m_cache != null) {
+                engine.storeTo(m_cache, cacheMask);
+            }
+        }
+    }
+
+    /**
+     * Returns the metrics of the execution this scorer belongs to.
+     *
+     * @return the metrics
+     */
+    BBB_predictorMetrics metrics() {
+        return m_metrics;
+    }
+
+    /**
+     * Returns the number of records whose connection table could not be read
+     * directly and that have been parsed with CDK's SDF reader instead.
+     *
+     * @return the number of records
+     */
+    long readerFallbacks() {
+        return m_readerFallbacks.get();
+    }
+
+    /**
+     * Returns the number of molecules for which descriptors have been
+     * requested so far. Must only be called when no thread is scoring.
+     *
+     * @return the number of molecules
+     */
+    long moleculeCount() {
+        long count = 0;
+        synchronized (m_allEngines) {
+            for (BBB_predictorDescriptorEngine e : m_allEngines) {
+                count += e.moleculeCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns how often the given descriptor has been computed so far. Must
+     * only be called when no thread is scoring.
+     *
+     * @param descriptor a descriptor
+     * @return the number of computations
+     */
+    long computations(final BBB_predictorDescriptor descriptor) {
+        long count = 0;
+        synchronized (m_allEngines) {
+            for (BBB_predictorDescriptorEngine e : m_allEngines) {
+                count += e.computations(descriptor);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns how many computations of the given descriptor were avoided
+     * because no prediction needed it for the respective molecule. Must only
+     * be called when no thread is scoring.
+     *
+     * @param descriptor a descriptor
+     * @return the number of avoided computations
+     */
+    long avoidedComputations(final BBB_predictorDescriptor descriptor) {
+        if (!m_plan.requires(descriptor)) {
+            return 0;
+        }
+        return moleculeCount() - computations(descriptor);
+    }
+}
@@ -0,0 +1,414 @@
+package org.cmdm;
+
+/**
+ * Computes the topological polar surface area exactly like CDK's
+ * <code>TPSADescriptor</code> with its default parameters, as a sum of
+ * per-atom contributions looked up in a dense table. CDK builds a profile
+ * string for every polar atom, looks it up in a hash map and searches all
+ * rings of the molecule for the few atoms in three-membered rings.
+ * <p>
+ * The table is compiled from CDK's parameter map, {@link #PROFILES} and
+ * {@link #CONTRIBUTIONS}, when the class is loaded and never changes. A
+ * profile describes a nitrogen, oxygen, sulphur or phosphorus atom by its
+ * highest bond order, bond order sum, neighbours, hydrogens, charge, aromatic
+ * bonds, whether it is in a three-membered ring and its single, double and
+ * triple bonds, where implicit hydrogens count as neighbours and single
+ * bonds. The highest bond order and the sum follow from the bond counts, so
+ * each profile is reduced to a code of the remaining properties. For every
+ * polar atom the same properties are counted as CDK does and the code's
+ * contribution is added in atom order, so the sum is the same double; atoms
+ * whose profile is not in the map contribute nothing, as in CDK. The atoms
+ * are read from a {@link BBB_predictorMoleculeGraph}, filled from the
+ * connection table or from the molecule as it has been read, so aromatic
+ * bonds are those flagged as aromatic in the molecule.
+ * <p>
+ * CDK returns NaN if its search for all rings gives up on a complex ring
+ * system; the search stops when a vertex of its path graph gets more than
+ * {@link #RING_SEARCH_LIMIT} edges. Those edges are paths between the ring
+ * system's branch atoms (atoms with three or more ring bonds), and there are
+ * at most <code>2^r</code> paths between two atoms of a ring system with
+ * <code>r</code> independent rings. For molecules with a ring system where
+ * this bound exceeds the limit,
+ * {@link #compute(BBB_predictorMoleculeGraph)} returns NaN and the caller has
+ * to use CDK. An instance is not thread safe, each descriptor engine has its
+ * own.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorTPSA {
+    /**
+     * The lowest of the vertex degree limits of CDK's
+     * <code>AllRingsFinder</code>, the default threshold is not lower.
+     */
+    static final int RING_SEARCH_LIMIT = 72;
+
+    /**
+     * The atom profiles of CDK 1.5.13's <code>TPSADescriptor</code>, in its
+     * format: symbol, highest bond order, bond order sum, neighbours,
+     * hydrogens, charge, aromatic bonds, in a three-membered ring, single,
+     * double and triple bonds.
+     */
+    private static final String[] PROFILES = {
+        "N+1.0+3.0+3+0+0+0+0+3+0+0", "N+2.0+3.0+2+0+0+0+0+1+1+0",
+        "N+3.0+3.0+1+0+0+0+0+0+0+1", "N+2.0+5.0+3+0+0+0+0+1+2+0",
+        "N+3.0+5.0+2+0+0+0+0+0+1+1", "N+1.0+3.0+3+0+0+0+1+3+0+0",
+        "N+1.0+3.0+3+1+0+0+0+3+0+0", "N+1.0+3.0+3+1+0+0+1+3+0+0",
+        "N+2.0+3.0+2+1+0+0+0+1+1+0", "N+1.0+3.0+3+2+0+0+0+3+0+0",
+        "N+1.0+4.0+4+0+1+0+0+4+0+0", "N+2.0+4.0+3+0+1+0+0+2+1+0",
+        "N+3.0+4.0+2+0+1+0+0+1+0+1", "N+1.0+4.0+4+1+1+0+0+4+0+0",
+        "N+2.0+4.0+3+1+1+0+0+2+1+0", "N+1.0+4.0+4+2+1+0+0+4+0+0",
+        "N+2.0+4.0+3+2+1+0+0+2+1+0", "N+1.0+4.0+4+3+1+0+0+4+0+0",
+        "N+1.5+3.0+2+0+0+2+0+0+0+0", "N+1.5+4.5+3+0+0+3+0+0+0+0",
+        "N+1.5+4.0+3+0+0+2+0+1+0+0", "N+2.0+5.0+3+0+0+2+0+0+1+0",
+        "N+1.5+4.0+3+1+0+2+0+1+0+0", "N+1.5+4.5+3+0+1+3+0+0+0+0",
+        "N+1.5+4.0+3+0+1+2+0+1+0+0", "N+1.5+4.0+3+1+1+2+0+1+0+0",
+        "O+1.0+2.0+2+0+0+0+0+2+0+0", "O+1.0+2.0+2+0+0+0+1+2+0+0",
+        "O+2.0+2.0+1+0+0+0+0+0+1+0", "O+1.0+1.0+1+0+-1+0+0+1+0+0",
+        "O+1.0+2.0+2+1+0+0+0+2+0+0", "O+1.5+3.0+2+0+0+2+0+0+0+0",
+        "S+1.0+2.0+2+0+0+0+0+2+0+0", "S+2.0+2.0+1+0+0+0+0+0+1+0",
+        "S+2.0+4.0+3+0+0+0+0+2+1+0", "S+2.0+6.0+4+0+0+0+0+2+2+0",
+        "S+1.0+2.0+2+1+0+0+0+2+0+0", "S+1.5+3.0+2+0+0+2+0+0+0+0",
+        "S+2.0+5.0+3+0+0+2+0+0+1+0", "P+1.0+3.0+3+0+0+0+0+3+0+0",
+        "P+2.0+3.0+2+0+0+0+0+1+1+0", "P+2.0+5.0+4+0+0+0+0+3+1+0",
+        "P+2.0+5.0+4+1+0+0+0+3+1+0"};
+
+    /** The contributions of the {@link #PROFILES}. */
+    private static final double[] CONTRIBUTIONS = {
+        3.24, 12.36, 23.79, 11.68, 13.6, 3.01, 12.03, 21.94, 23.85, 26.02,
+        0.0, 3.01, 4.36, 4.44, 13.97, 16.61, 25.59, 27.64, 12.89, 4.41,
+        4.93, 8.39, 15.79, 4.1, 3.88, 14.14,
+        9.23, 12.53, 17.07, 23.06, 20.23, 13.14,
+        25.3, 32.09, 19.21, 8.38, 38.8, 28.24, 21.7,
+        13.59, 34.14, 9.81, 23.47};
+
+    /** Index of the polar elements plus one, indexed by atomic number. */
+    private static final int[] ELEMENTS = new int[128];
+
+    private static final String[] SYMBOLS = {"N", "O", "S", "P"};
+
+    /**
+     * The index of each code's profile plus one, 0 for codes that are not in
+     * CDK's map.
+     */
+    private static final byte[] TABLE = new byte[1 << 16];
+
+    static {
+        for (int i = 0; i < SYMBOLS.length; i++) {
+            ELEMENTS[BBB_predictorElements.atomicNumber(SYMBOLS[i].charAt(0),
+                    ' ')] = i + 1;
+        }
+        for (int i = 0; i < PROFILES.length; i++) {
+            String[] p = PROFILES[i].split("\\+");
+            int neighbours = Integer.parseInt(p[3]);
+            int aromatics = Integer.parseInt(p[6]);
+            int singles = Integer.parseInt(p[8]);
+            int doubles = Integer.parseInt(p[9]);
+            int triples = Integer.parseInt(p[10]);
+            int code = code(p[0].charAt(0), singles, doubles, triples,
+                    aromatics, neighbours - singles - doubles - triples
+                            - aromatics, Integer.parseInt(p[4]),
+                    Integer.parseInt(p[5]), "1".equals(p[7]));
+            if (code < 0) {
+                throw new IllegalStateException("TPSA profile outside of the"
+                        + " code's ranges: " + PROFILES[i]);
+            }
+            // a profile whose order and sum do not match its bond counts is
+            // never built by CDK
+            if (p[1].equals(String.valueOf(maxBondOrder(singles, doubles,
+                    triples, aromatics)))
+                    && p[2].equals(String.valueOf(bondOrderSum(singles,
+                            doubles, triples, aromatics)))) {
+                TABLE[code] = (byte)(i + 1);
+            }
+        }
+    }
+
+    private BBB_predictorMoleculeGraph m_graph;
+
+    private int m_atomCount;
+
+    private int m_bondCount;
+
+    private int[] m_discovered = new int[64];
+
+    private int[] m_low = new int[64];
+
+    private int[] m_parentBonds = new int[64];
+
+    private int[] m_next = new int[64];
+
+    private int[] m_stack = new int[64];
+
+    private boolean[] m_bridges = new boolean[64];
+
+    /**
+     * Returns the polar surface area of a molecule as CDK computes it.
+     *
+     * @param graph the molecule's graph
+     * @return the polar surface area, or NaN if the molecule must be passed
+     *         to CDK
+     */
+    double compute(final BBB_predictorMoleculeGraph graph) {
+        m_graph = graph;
+        m_atomCount = graph.atomCount();
+        m_bondCount = graph.bondCount();
+        ensureCapacity(m_atomCount, m_bondCount);
+        if (exceedsRingSearch()) {
+            return Double.NaN;
+        }
+        double tpsa = 0;
+        for (int i = 0; i < m_atomCount; i++) {
+            int atomicNumber = graph.atomicNumber(i);
+            if ((atomicNumber < 0) || (atomicNumber >= ELEMENTS.length)
+                    || (ELEMENTS[atomicNumber] == 0)) {
+                continue;
+            }
+            int h = graph.hydrogens(i);
+            int singles = h;
+            int doubles = 0;
+            int triples = 0;
+            int aromatics = 0;
+            int others = 0;
+            int hydrogens = h;
+            int end = graph.firstNeighbour(i + 1);
+            for (int k = graph.firstNeighbour(i); k < end; k++) {
+                switch (graph.bondOrder(graph.neighbourBond(k))) {
+                    case BBB_predictorMoleculeGraph.AROMATIC:
+                        aromatics++;
+                        break;
+                    case 1:
+                        singles++;
+                        break;
+                    case 2:
+                        doubles++;
+                        break;
+                    case 3:
+                        triples++;
+                        break;
+                    default:
+                        // a neighbour, but none of CDK's bond counts
+                        others++;
+                }
+                if (graph.atomicNumber(graph.neighbour(k))
+                        == BBB_predictorElements.H) {
+                    hydrogens++;
+                }
+            }
+            int code = code(SYMBOLS[ELEMENTS[atomicNumber] - 1].charAt(0),
+                    singles, doubles, triples, aromatics, others, hydrogens,
+                    graph.charge(i), inThreeRing(i));
+            if ((code >= 0) && (TABLE[code] != 0)) {
+                tpsa += CONTRIBUTIONS[TABLE[code] - 1];
+            }
+        }
+        m_graph = null;
+        return tpsa;
+    }
+
+    private boolean inThreeRing(final int atom) {
+        BBB_predictorMoleculeGraph graph = m_graph;
+        int end = graph.firstNeighbour(atom + 1);
+        for (int i = graph.firstNeighbour(atom); i < end; i++) {
+            int u = graph.neighbour(i);
+            for (int j = i + 1; j < end; j++) {
+                int v = graph.neighbour(j);
+                for (int k = graph.firstNeighbour(u);
+                        k < graph.firstNeighbour(u + 1); k++) {
+                    if (graph.neighbour(k) == v) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether CDK's search for all rings might give up on one of the
+     * molecule's ring systems, the connected parts of its ring bonds.
+     */
+    private boolean exceedsRingSearch() {
+        findBridges();
+        BBB_predictorMoleculeGraph graph = m_graph;
+        int n = m_atomCount;
+        int[] system = m_discovered;
+        int[] stack = m_stack;
+        for (int i = 0; i < n; i++) {
+            system[i] = 0;
+        }
+        for (int root = 0; root < n; root++) {
+            if (system[root] != 0) {
+                continue;
+            }
+            system[root] = 1;
+            int size = 1;
+            stack[0] = root;
+            int atoms = 0;
+            int ringBonds = 0;
+            int branches = 0;
+            while (size > 0) {
+                int v = stack[--size];
+                int degree = 0;
+                int end = graph.firstNeighbour(v + 1);
+                for (int k = graph.firstNeighbour(v); k < end; k++) {
+                    if (m_bridges[graph.neighbourBond(k)]) {
+                        continue;
+                    }
+                    degree++;
+                    int w = graph.neighbour(k);
+                    if (system[w] == 0) {
+                        system[w] = 1;
+                        stack[size++] = w;
+                    }
+                }
+                if (degree > 0) {
+                    atoms++;
+                    ringBonds += degree;
+                }
+                if (degree > 2) {
+                    branches++;
+                }
+            }
+            int rings = ringBonds / 2 - atoms + 1;
+            if ((branches > 1) && ((rings >= 30)
+                    || ((long)(branches - 1) << rings) > RING_SEARCH_LIMIT)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the bonds that are in no ring, by an iterative depth-first search
+     * comparing discovery times with the lowest time reachable by a back
+     * bond.
+     */
+    private void findBridges() {
+        BBB_predictorMoleculeGraph graph = m_graph;
+        int n = m_atomCount;
+        int[] discovered = m_discovered;
+        int[] low = m_low;
+        int[] stack = m_stack;
+        for (int i = 0; i < n; i++) {
+            discovered[i] = 0;
+        }
+        for (int k = 0; k < m_bondCount; k++) {
+            m_bridges[k] = false;
+        }
+        int time = 0;
+        for (int root = 0; root < n; root++) {
+            if (discovered[root] != 0) {
+                continue;
+            }
+            int size = 0;
+            stack[size++] = root;
+            discovered[root] = ++time;
+            low[root] = time;
+            m_parentBonds[root] = -1;
+            m_next[root] = graph.firstNeighbour(root);
+            while (size > 0) {
+                int v = stack[size - 1];
+                if (m_next[v] < graph.firstNeighbour(v + 1)) {
+                    int k = m_next[v]++;
+                    int bond = graph.neighbourBond(k);
+                    if (bond == m_parentBonds[v]) {
+                        continue;
+                    }
+                    int w = graph.neighbour(k);
+                    if (discovered[w] == 0) {
+                        discovered[w] = ++time;
+                        low[w] = time;
+                        m_parentBonds[w] = bond;
+                        m_next[w] = graph.firstNeighbour(w);
+                        stack[size++] = w;
+                    } else {
+                        low[v] = Math.min(low[v], discovered[w]);
+                    }
+                } else {
+                    size--;
+                    if (size > 0) {
+                        int u = stack[size - 1];
+                        low[u] = Math.min(low[u], low[v]);
+                        if (low[v] > discovered[u]) {
+                            m_bridges[m_parentBonds[v]] = true;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void ensureCapacity(final int atomCount, final int bondCount) {
+        if (m_discovered.length < atomCount) {
+            int size = Math.max(atomCount, m_discovered.length * 2);
+            m_discovered = new int[size];
+            m_low = new int[size];
+            m_parentBonds = new int[size];
+            m_next = new int[size];
+            m_stack = new int[size];
+        }
+        if (m_bridges.length < bondCount) {
+            m_bridges = new boolean[Math.max(bondCount, m_bridges.length * 2)];
+        }
+    }
+
+    /** The highest bond order as CDK's profile has it. */
+    private static double maxBondOrder(final int singles, final int doubles,
+            final int triples, final int aromatics) {
+        double order = 0;
+        if (singles > 0) {
+            order = 1.0;
+        }
+        if (aromatics > 0) {
+            order = 1.5;
+        }
+        if (doubles > 0) {
+            order = 2.0;
+        }
+        if (triples > 0) {
+            order = 3.0;
+        }
+        return order;
+    }
+
+    /** The bond order sum as CDK's profile has it. */
+    private static double bondOrderSum(final int singles, final int doubles,
+            final int triples, final int aromatics) {
+        double sum = 0;
+        sum += singles * 1.0;
+        sum += doubles * 2.0;
+        sum += triples * 3.0;
+        sum += aromatics * 1.5;
+        return sum;
+    }
+
+    /**
+     * Packs an atom profile into 16 bits.
+     *
+     * @param symbol the first letter of the element's symbol
+     * @param others the bonds that are neither single, double, triple nor
+     *            aromatic
+     * @return the code, or -1 if the profile is outside of the ranges of the
+     *         code and so not in CDK's map
+     */
+    private static int code(final char symbol, final int singles,
+            final int doubles, final int triples, final int aromatics,
+            final int others, final int hydrogens, final int charge,
+            final boolean threeRing) {
+        if ((singles > 7) || (doubles > 3) || (triples > 1) || (aromatics > 3)
+                || (others < 0) || (others > 1) || (hydrogens > 3)
+                || (charge < -1) || (charge > 1)) {
+            return -1;
+        }
+        int code = ELEMENTS[BBB_predictorElements.atomicNumber(symbol, ' ')]
+                - 1;
+        code = code * 8 + singles;
+        code = code * 4 + doubles;
+        code = code * 2 + triples;
+        code = code * 4 + aromatics;
+        code = code * 2 + others;
+        code = code * 4 + hydrogens;
+        code = code * 4 + charge + 1;
+        return code * 2 + (threeRing ? 1 : 0);
+    }
+}
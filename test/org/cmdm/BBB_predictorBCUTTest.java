@@ -0,0 +1,95 @@
+package org.cmdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.openscience.cdk.aromaticity.Aromaticity;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.qsar.descriptors.molecular.BCUTDescriptor;
+import org.openscience.cdk.tools.CDKHydrogenAdder;
+import org.openscience.cdk.tools.manipulator.AtomContainerManipulator;
+
+/**
+ * Compares {@link BBB_predictorBCUT} with CDK's <code>BCUTDescriptor</code>
+ * on the records of {@link BBB_predictorReferenceSDF}.
+ *
+ * @author Yi Hsiao
+ */
+public class BBB_predictorBCUTTest {
+    private static final double TOLERANCE = 1e-8;
+
+    /**
+     * Records that must not be left to CDK, among them disconnected records
+     * and records without bonds.
+     */
+    private static final Set<String> HANDLED = new HashSet<String>(
+            Arrays.asList("ethanol", "acetic acid", "methylammonium chloride",
+                    "methane", "methane, two molecules", "water",
+                    "benzene and ethanol", "naphthalene", "cubane"));
+
+    /**
+     * Every record this class computes gets CDK's value.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testReferenceRecords() throws Exception {
+        BBB_predictorBCUT bcut = new BBB_predictorBCUT();
+        BCUTDescriptor cdk = new BCUTDescriptor();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            IAtomContainer molecule =
+                    BBB_predictorReferenceSDF.readWithCDK(record);
+            IAtomContainer typed = typedCopy(molecule);
+            double value = (typed != null) ? bcut.compute(typed) : Double.NaN;
+            if (HANDLED.contains(title)) {
+                assertFalse(title, Double.isNaN(value));
+            }
+            if (!Double.isNaN(value)) {
+                assertEquals(title, BBB_predictorDescriptorEngine.arrayValue(
+                        cdk.calculate(molecule), 0), value, TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * Without bonds between heavy atoms all pairs are 0 and the lowest
+     * eigenvalue is the lowest mass.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testWithoutBonds() throws Exception {
+        BBB_predictorBCUT bcut = new BBB_predictorBCUT();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            if ("methane, two molecules".equals(title)) {
+                assertEquals(title, 12.0, bcut.compute(typedCopy(
+                        BBB_predictorReferenceSDF.readWithCDK(record))),
+                        TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * Types a copy of the molecule as the descriptor engine does, returns
+     * <code>null</code> if that fails and the engine would use CDK.
+     */
+    private static IAtomContainer typedCopy(final IAtomContainer molecule) {
+        try {
+            IAtomContainer copy = (IAtomContainer)molecule.clone();
+            AtomContainerManipulator.percieveAtomTypesAndConfigureAtoms(copy);
+            CDKHydrogenAdder.getInstance(copy.getBuilder())
+                    .addImplicitHydrogens(copy);
+            Aromaticity.cdkLegacy().apply(copy);
+            return copy;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.cmdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openscience.cdk.graph.ConnectivityChecker;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+/**
+ * Compares the molecules created by {@link BBB_predictorCtabParser} with the
+ * ones CDK's V2000 reader reads from the records of
+ * {@link BBB_predictorReferenceSDF}.
+ *
+ * @author Yi Hsiao
+ */
+public class BBB_predictorCtabParserTest {
+    /**
+     * Every record except the one with aromatic bond types is parsed and
+     * gives the same atoms, charges, implicit hydrogens and bonds as CDK.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testReferenceRecords() throws Exception {
+        BBB_predictorCtabParser parser = new BBB_predictorCtabParser();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            if (BBB_predictorReferenceSDF.AROMATIC_BOND_TYPE.equals(title)) {
+                continue;
+            }
+            IAtomContainer parsed = parse(parser, record);
+            assertTrue(title, parsed != null);
+            IAtomContainer cdk = BBB_predictorReferenceSDF.readWithCDK(record);
+
+            assertEquals(title, cdk.getAtomCount(), parsed.getAtomCount());
+            for (int i = 0; i < cdk.getAtomCount(); i++) {
+                IAtom expected = cdk.getAtom(i);
+                IAtom atom = parsed.getAtom(i);
+                String where = title + ", atom " + (i + 1);
+                assertEquals(where, expected.getAtomicNumber(),
+                        atom.getAtomicNumber());
+                assertEquals(where, expected.getFormalCharge(),
+                        atom.getFormalCharge());
+                assertEquals(where, expected.getImplicitHydrogenCount(),
+                        atom.getImplicitHydrogenCount());
+            }
+
+            assertEquals(title, cdk.getBondCount(), parsed.getBondCount());
+            for (int i = 0; i < cdk.getBondCount(); i++) {
+                IBond expected = cdk.getBond(i);
+                IBond bond = parsed.getBond(i);
+                String where = title + ", bond " + (i + 1);
+                assertEquals(where, cdk.getAtomNumber(expected.getAtom(0)),
+                        parsed.getAtomNumber(bond.getAtom(0)));
+                assertEquals(where, cdk.getAtomNumber(expected.getAtom(1)),
+                        parsed.getAtomNumber(bond.getAtom(1)));
+                assertEquals(where, expected.getOrder(), bond.getOrder());
+            }
+        }
+    }
+
+    /**
+     * <code>M  CHG</code> lines override the charges of the atom block, atoms
+     * they do not list keep their atom block charge.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testChargeLines() throws Exception {
+        BBB_predictorCtabParser parser = new BBB_predictorCtabParser();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            if ("nitromethane, charges overridden".equals(title)) {
+                assertCharges(title, parse(parser, record), 0, 1, 0, -1);
+            } else if ("sodium acetate".equals(title)) {
+                assertCharges(title, parse(parser, record), 0, 0, 0, -1, 1);
+            } else if ("methylammonium chloride".equals(title)) {
+                IAtomContainer molecule = parse(parser, record);
+                assertCharges(title, molecule, 0, 1, -1);
+                assertEquals(title, Integer.valueOf(3),
+                        molecule.getAtom(1).getImplicitHydrogenCount());
+            }
+        }
+    }
+
+    /**
+     * Charged nitrogen, oxygen and sulphur get the hydrogens of their
+     * charged valence.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testChargedHeteroAtoms() throws Exception {
+        BBB_predictorCtabParser parser = new BBB_predictorCtabParser();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            if ("trimethylsulfonium".equals(title)
+                    || "trimethyloxonium".equals(title)) {
+                IAtom atom = centralAtom(parse(parser, record));
+                assertEquals(title, Integer.valueOf(1), atom.getFormalCharge());
+                assertEquals(title, Integer.valueOf(0),
+                        atom.getImplicitHydrogenCount());
+            } else if ("ammonium chloride".equals(title)) {
+                IAtom atom = parse(parser, record).getAtom(0);
+                assertEquals(title, Integer.valueOf(1), atom.getFormalCharge());
+                assertEquals(title, Integer.valueOf(4),
+                        atom.getImplicitHydrogenCount());
+            }
+        }
+    }
+
+    /**
+     * Records with several fragments keep them apart.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testFragments() throws Exception {
+        BBB_predictorCtabParser parser = new BBB_predictorCtabParser();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            if ("methane, two molecules".equals(title)
+                    || "benzene and ethanol".equals(title)
+                    || "ammonium chloride".equals(title)
+                    || "methylammonium chloride".equals(title)) {
+                assertEquals(title, 2, ConnectivityChecker
+                        .partitionIntoMolecules(parse(parser, record))
+                        .getAtomContainerCount());
+            }
+        }
+    }
+
+    /**
+     * Aromatic bond types are left to CDK.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testAromaticBondType() throws Exception {
+        BBB_predictorCtabParser parser = new BBB_predictorCtabParser();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            if (BBB_predictorReferenceSDF.AROMATIC_BOND_TYPE.equals(title)) {
+                assertFalse(title, parser.parse(record,
+                        BBB_predictorReferenceSDF.atomCount(record),
+                        BBB_predictorReferenceSDF.bondCount(record)));
+            }
+        }
+    }
+
+    /**
+     * Parses a record, returns <code>null</code> if the parser rejects it.
+     */
+    private static IAtomContainer parse(final BBB_predictorCtabParser parser,
+            final String record) {
+        if (!parser.parse(record, BBB_predictorReferenceSDF.atomCount(record),
+                BBB_predictorReferenceSDF.bondCount(record))) {
+            return null;
+        }
+        return parser.createAtomContainer(SilentChemObjectBuilder
+                .getInstance(), BBB_predictorReferenceSDF.title(record));
+    }
+
+    private static void assertCharges(final String title,
+            final IAtomContainer molecule, final int... charges) {
+        assertEquals(title, charges.length, molecule.getAtomCount());
+        for (int i = 0; i < charges.length; i++) {
+            assertEquals(title + ", atom " + (i + 1),
+                    Integer.valueOf(charges[i]),
+                    molecule.getAtom(i).getFormalCharge());
+        }
+    }
+
+    /**
+     * Returns the first atom that is not carbon.
+     */
+    private static IAtom centralAtom(final IAtomContainer molecule) {
+        for (IAtom atom : molecule.atoms()) {
+            if (atom.getAtomicNumber() != BBB_predictorElements.C) {
+                return atom;
+            }
+        }
+        throw new AssertionError("No hetero atom");
+    }
+}
@@ -0,0 +1,132 @@
+package org.cmdm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IChemObjectBuilder;
+import org.openscience.cdk.io.MDLV2000Reader;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+/**
+ * The records of <code>BBB_predictorReference.sdf</code>, on which the tests
+ * compare the plug-in's parser and descriptors with CDK. The file covers
+ * charges set in the atom block and by <code>M  CHG</code> lines (which
+ * override the atom block), charged nitrogen, oxygen and sulphur, polar
+ * atoms in three-membered rings, sulphur and phosphorus environments,
+ * records with several fragments or without bonds, explicit hydrogens,
+ * fused and bridged ring systems, elements outside of BCUT's parameters and
+ * a record with aromatic bond types.
+ *
+ * @author Yi Hsiao
+ */
+final class BBB_predictorReferenceSDF {
+    /** The title of the record whose ring system CDK's ring search rejects. */
+    static final String CUBANE = "cubane";
+
+    /** The title of the record using the aromatic bond type. */
+    static final String AROMATIC_BOND_TYPE = "pyridine, aromatic bond type";
+
+    private static final String RESOURCE = "BBB_predictorReference.sdf";
+
+    private static final String DELIMITER = "$$$$\n";
+
+    private BBB_predictorReferenceSDF() {
+    }
+
+    /**
+     * Returns the text of the records, each ending with its delimiter line.
+     *
+     * @return the records in file order
+     * @throws IOException if the resource cannot be read
+     */
+    static List<String> records() throws IOException {
+        String text = read();
+        List<String> records = new ArrayList<String>();
+        int start = 0;
+        int end;
+        while ((end = text.indexOf(DELIMITER, start)) >= 0) {
+            records.add(text.substring(start, end + DELIMITER.length()));
+            start = end + DELIMITER.length();
+        }
+        return records;
+    }
+
+    /**
+     * Returns the title of a record.
+     *
+     * @param record a record as returned by {@link #records()}
+     * @return the first line of the record
+     */
+    static String title(final String record) {
+        return record.substring(0, record.indexOf('\n'));
+    }
+
+    /**
+     * Returns the number of atoms on the counts line of a record.
+     *
+     * @param record a record as returned by {@link #records()}
+     * @return the number of atoms
+     */
+    static int atomCount(final String record) {
+        return Integer.parseInt(countsLine(record).substring(0, 3).trim());
+    }
+
+    /**
+     * Returns the number of bonds on the counts line of a record.
+     *
+     * @param record a record as returned by {@link #records()}
+     * @return the number of bonds
+     */
+    static int bondCount(final String record) {
+        return Integer.parseInt(countsLine(record).substring(3, 6).trim());
+    }
+
+    /**
+     * Reads a record with CDK's V2000 reader, as the node does for records
+     * its own parser rejects.
+     *
+     * @param record a record as returned by {@link #records()}
+     * @return the molecule as CDK reads it
+     * @throws CDKException if CDK cannot read the record
+     */
+    static IAtomContainer readWithCDK(final String record)
+            throws CDKException {
+        IChemObjectBuilder builder = SilentChemObjectBuilder.getInstance();
+        MDLV2000Reader reader = new MDLV2000Reader(new StringReader(record));
+        return reader.read(builder.newInstance(IAtomContainer.class));
+    }
+
+    private static String countsLine(final String record) {
+        int start = 0;
+        for (int i = 0; i < 3; i++) {
+            start = record.indexOf('\n', start) + 1;
+        }
+        return record.substring(start, record.indexOf('\n', start));
+    }
+
+    private static String read() throws IOException {
+        InputStream in =
+                BBB_predictorReferenceSDF.class.getResourceAsStream(RESOURCE);
+        if (in == null) {
+            throw new IOException("Missing test resource " + RESOURCE);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), Charset.forName("UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+}
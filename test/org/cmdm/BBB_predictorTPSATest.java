@@ -0,0 +1,107 @@
+package org.cmdm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.qsar.descriptors.molecular.MannholdLogPDescriptor;
+import org.openscience.cdk.qsar.descriptors.molecular.TPSADescriptor;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+
+/**
+ * Compares {@link BBB_predictorTPSA} with CDK's <code>TPSADescriptor</code>
+ * on the records of {@link BBB_predictorReferenceSDF}, both on graphs loaded
+ * from molecules read by CDK and on graphs filled by the connection table
+ * parser.
+ *
+ * @author Yi Hsiao
+ */
+public class BBB_predictorTPSATest {
+    private static final double TOLERANCE = 1e-10;
+
+    /**
+     * Every record except cubane is computed by the table and gives CDK's
+     * value, cubane is left to CDK.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testReferenceRecords() throws Exception {
+        BBB_predictorTPSA tpsa = new BBB_predictorTPSA();
+        BBB_predictorMoleculeGraph graph = new BBB_predictorMoleculeGraph();
+        TPSADescriptor cdk = new TPSADescriptor();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            IAtomContainer molecule =
+                    BBB_predictorReferenceSDF.readWithCDK(record);
+            assertTrue(title, graph.load(molecule));
+            double value = tpsa.compute(graph);
+            if (BBB_predictorReferenceSDF.CUBANE.equals(title)) {
+                assertTrue(title, Double.isNaN(value));
+                continue;
+            }
+            assertEquals(title, BBB_predictorDescriptorEngine.doubleValue(
+                    cdk.calculate(molecule)), value, TOLERANCE);
+        }
+    }
+
+    /**
+     * TPSA and Mannhold LogP of graphs filled by the parser are CDK's values
+     * for the molecules the parser creates.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testParsedRecords() throws Exception {
+        BBB_predictorCtabParser parser = new BBB_predictorCtabParser();
+        BBB_predictorTPSA tpsa = new BBB_predictorTPSA();
+        BBB_predictorMoleculeGraph graph = new BBB_predictorMoleculeGraph();
+        TPSADescriptor cdk = new TPSADescriptor();
+        MannholdLogPDescriptor mannhold = new MannholdLogPDescriptor();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            if (!parser.parse(record,
+                    BBB_predictorReferenceSDF.atomCount(record),
+                    BBB_predictorReferenceSDF.bondCount(record))) {
+                continue;
+            }
+            parser.fill(graph);
+            IAtomContainer molecule = parser.createAtomContainer(
+                    SilentChemObjectBuilder.getInstance(), title);
+            double value = tpsa.compute(graph);
+            if (!BBB_predictorReferenceSDF.CUBANE.equals(title)) {
+                assertEquals(title, BBB_predictorDescriptorEngine.doubleValue(
+                        cdk.calculate(molecule)), value, TOLERANCE);
+            }
+            assertEquals(title, BBB_predictorDescriptorEngine.doubleValue(
+                    mannhold.calculate(molecule)),
+                    BBB_predictorDescriptorEngine.mannholdLogP(
+                            graph.carbonCount(), graph.heteroAtomCount()),
+                    TOLERANCE);
+        }
+    }
+
+    /**
+     * Sulphur and phosphorus atoms get CDK's contributions.
+     *
+     * @throws Exception if a record cannot be read
+     */
+    @Test
+    public void testSulphurAndPhosphorus() throws Exception {
+        BBB_predictorTPSA tpsa = new BBB_predictorTPSA();
+        BBB_predictorMoleculeGraph graph = new BBB_predictorMoleculeGraph();
+        for (String record : BBB_predictorReferenceSDF.records()) {
+            String title = BBB_predictorReferenceSDF.title(record);
+            graph.load(BBB_predictorReferenceSDF.readWithCDK(record));
+            if ("dimethyl sulfoxide".equals(title)) {
+                assertEquals(title, 17.07 + 19.21, tpsa.compute(graph),
+                        TOLERANCE);
+            } else if ("trimethylphosphine".equals(title)) {
+                assertEquals(title, 13.59, tpsa.compute(graph), TOLERANCE);
+            } else if ("thiophene".equals(title)) {
+                assertEquals(title, 25.3, tpsa.compute(graph), TOLERANCE);
+            }
+        }
+    }
+}